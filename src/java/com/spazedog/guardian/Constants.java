@@ -12,6 +12,12 @@ public class Constants {
 	 */
 	public static final boolean ENABLE_REPORT_TESTING = false;
 	
+	/*
+	 * Compare the scan time of the native library and the Java scanner when the application starts.
+	 * The result is written to the log.
+	 */
+	public static final boolean ENABLE_SCAN_BENCHMARK = false;
+	
 	/*
 	 * The problem with Xposed Services, is that they run in the Android 
 	 * main process. If the app is updated, the Service is not updated along with it, 
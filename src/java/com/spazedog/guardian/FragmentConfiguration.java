@@ -66,6 +66,8 @@ public class FragmentConfiguration extends AbstractFragment implements IServiceL
 	
 	protected SpinnerWidget mThresholdSpinnerInt;
 	protected SpinnerWidget mThresholdSpinnerNon;
+	protected SpinnerWidget mThresholdUnitSpinner;
+	protected SpinnerWidget mThresholdScopeSpinner;
 	
 	protected SpinnerWidget mActionSpinnerInt;
 	protected SpinnerWidget mActionSpinnerNon;
@@ -110,6 +112,12 @@ public class FragmentConfiguration extends AbstractFragment implements IServiceL
 		mThresholdSpinnerNon = (SpinnerWidget) view.findViewById(R.id.config_threshold_noninteractive);
 		mThresholdSpinnerNon.setSelectedValue( "" + settings.getServiceThreshold(false) );
 		
+		mThresholdUnitSpinner = (SpinnerWidget) view.findViewById(R.id.config_threshold_unit);
+		mThresholdUnitSpinner.setSelectedValue( settings.getServiceThresholdUnit() );
+		
+		mThresholdScopeSpinner = (SpinnerWidget) view.findViewById(R.id.config_threshold_scope);
+		mThresholdScopeSpinner.setSelectedValue( settings.getServiceThresholdScope() );
+		
 		mActionSpinnerInt = (SpinnerWidget) view.findViewById(R.id.config_action_interactive);
 		mActionSpinnerInt.setSelectedValue( settings.getServiceAction(true) );
 		
@@ -151,6 +159,8 @@ public class FragmentConfiguration extends AbstractFragment implements IServiceL
 		mEngineSpinner.setWidgetChangeListener(this);
 		mThresholdSpinnerInt.setWidgetChangeListener(this);
 		mThresholdSpinnerNon.setWidgetChangeListener(this);
+		mThresholdUnitSpinner.setWidgetChangeListener(this);
+		mThresholdScopeSpinner.setWidgetChangeListener(this);
 		mActionSpinnerInt.setWidgetChangeListener(this);
 		mActionSpinnerNon.setWidgetChangeListener(this);
 		mWakelockActionCheckBox.setWidgetChangeListener(this);
@@ -170,6 +180,8 @@ public class FragmentConfiguration extends AbstractFragment implements IServiceL
 		mEngineSpinner.setWidgetChangeListener(null);
 		mThresholdSpinnerInt.setWidgetChangeListener(null);
 		mThresholdSpinnerNon.setWidgetChangeListener(null);
+		mThresholdUnitSpinner.setWidgetChangeListener(null);
+		mThresholdScopeSpinner.setWidgetChangeListener(null);
 		mActionSpinnerInt.setWidgetChangeListener(null);
 		mActionSpinnerNon.setWidgetChangeListener(null);
 		mWakelockActionCheckBox.setWidgetChangeListener(null);
@@ -196,6 +208,12 @@ public class FragmentConfiguration extends AbstractFragment implements IServiceL
 		} else if (view == mThresholdSpinnerNon) {
 			getSettings().setServiceThreshold( Integer.valueOf( (String) newValue ), false );
 			
+		} else if (view == mThresholdUnitSpinner) {
+			getSettings().setServiceThresholdUnit( (String) newValue );
+			
+		} else if (view == mThresholdScopeSpinner) {
+			getSettings().setServiceThresholdScope( (String) newValue );
+			
 		} else if (view == mActionSpinnerInt) {
 			getSettings().setServiceAction( (String) newValue, true );
 			
@@ -4,6 +4,7 @@ import android.app.ActivityManager;
 import android.app.ActivityManager.RunningAppProcessInfo;
 import android.content.Context;
 import android.os.Bundle;
+import android.os.Message;
 import android.support.design.widget.Snackbar;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -13,6 +14,7 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.widget.ImageView;
+import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import com.spazedog.guardian.application.Settings;
@@ -20,10 +22,15 @@ import com.spazedog.guardian.backend.xposed.WakeLockService.ProcessLockInfo;
 import com.spazedog.guardian.db.WhiteListDB;
 import com.spazedog.guardian.scanner.EntityAndroid;
 import com.spazedog.guardian.scanner.EntityAndroid.AndroidDataLoader;
+import com.spazedog.guardian.scanner.ProcessScanner;
+import com.spazedog.guardian.scanner.ProcessScanner.ScanMode;
+import com.spazedog.guardian.scanner.StatSystem;
 import com.spazedog.guardian.scanner.containers.ProcEntity;
 import com.spazedog.guardian.scanner.containers.ProcEntity.DataLoader;
 import com.spazedog.guardian.scanner.containers.ProcList;
 import com.spazedog.guardian.utils.AbstractFragment;
+import com.spazedog.guardian.utils.AbstractHandler;
+import com.spazedog.guardian.utils.AbstractThread;
 import com.spazedog.guardian.views.CheckBoxWidget;
 import com.spazedog.guardian.views.TextboxWidget;
 import com.spazedog.guardian.views.WidgetView;
@@ -37,6 +44,83 @@ public class FragmentProcessDetails extends AbstractFragment implements WidgetVi
 	 * 			Add option to update all information using an actionbar update button. 
 	 * 			This includes the information in the IProcessEntity interface.
 	 */
+
+	/*
+	 * The amount of threads to display
+	 */
+	protected static final int MAX_THREADS = 5;
+
+	protected static class ThreadWorker extends AbstractThread<FragmentProcessDetails> {
+		ProcList<?> mThreads;
+		ProcessScanner mProcessScanner = new ProcessScanner();
+
+		public ThreadWorker(FragmentProcessDetails reference) {
+			super(reference);
+		}
+
+		@Override
+		public void onTerminate() {
+			mProcessScanner.release();
+		}
+
+		@Override
+		public void onRun() {
+			FragmentProcessDetails fragment = getReference();
+			Integer timeout = mThreads == null ? 1000 : 3000;
+
+			if (fragment != null) {
+				ProcList<?> threads = mThreads;
+				boolean hasUsage = threads != null;
+
+				/*
+				 * The first scan only has the process itself to start from,
+				 * the thread usage is known from the second scan and onwards
+				 */
+				if (threads == null) {
+					threads = new StatSystem(1);
+					threads.addEntity(fragment.mEntity);
+				}
+
+				mThreads = mProcessScanner.execute(fragment.getController(), ScanMode.COLLECT_THREADS, threads);
+
+				if (mThreads != null && hasUsage && !isInterrupted()) {
+					fragment.mThreadHandler.obtainMessage(0, mThreads.sortEntities()).sendToTarget();
+				}
+
+			} else {
+				interrupt();
+			}
+
+			if (!isInterrupted()) {
+				do {
+					try {
+						sleep(100); timeout -= 100;
+
+					} catch (Throwable e) {}
+
+				} while (timeout > 0 && !isInterrupted());
+			}
+		}
+	}
+
+	protected static class ThreadHandler extends AbstractHandler<FragmentProcessDetails> {
+		public ThreadHandler(FragmentProcessDetails fragment) {
+			super(fragment);
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			FragmentProcessDetails fragment = getReference();
+			ProcList<?> threads = (ProcList<?>) msg.obj;
+
+			if (fragment != null && fragment.getView() != null && threads != null) {
+				fragment.updateThreadViews(threads);
+			}
+		}
+	}
+
+	protected ThreadWorker mThreadWorker;
+	protected ThreadHandler mThreadHandler;
 	
 	protected ProcList<?> mProcesses;
 	protected ProcEntity<?> mEntity;
@@ -129,6 +213,16 @@ public class FragmentProcessDetails extends AbstractFragment implements WidgetVi
 		super.onPause();
 
         mWhiteListCheckBox.setWidgetChangeListener(null);
+
+		if (mThreadWorker != null) {
+			try {
+				mThreadWorker.interrupt();
+				mThreadWorker.join();
+				mThreadWorker = null;
+				mThreadHandler = null;
+
+			} catch (InterruptedException e) {}
+		}
 		
 		/*
 		 * Like most in the support libraries, this does not work properly. 
@@ -145,6 +239,51 @@ public class FragmentProcessDetails extends AbstractFragment implements WidgetVi
         super.onResume();
 
         mWhiteListCheckBox.setWidgetChangeListener(this);
+
+        /*
+         * Reading the threads is only worth the cost for processes that uses to much CPU
+         */
+        if (isAboveThreshold()) {
+            mThreadHandler = new ThreadHandler(this);
+            mThreadWorker = new ThreadWorker(this);
+            mThreadWorker.start();
+        }
+    }
+
+    public boolean isAboveThreshold() {
+        Settings settings = getSettings();
+        double usage = "core".equals(settings.getServiceThresholdUnit()) ? mEntity.getCoreUsage() : mEntity.getCpuUsage();
+
+        return usage > settings.getServiceThreshold(true) || (usage > 0 && Constants.ENABLE_REPORT_TESTING);
+    }
+
+    public void updateThreadViews(ProcList<?> threads) {
+        View view = getView();
+        LinearLayout listView = (LinearLayout) view.findViewById(R.id.process_thread_list);
+        int count = Math.min(threads.getEntitySize(), MAX_THREADS);
+
+        /*
+         * The views are kept and re-used for each update
+         */
+        for (int i=0; i < count; i++) {
+            ProcEntity<?> thread = threads.getEntity(i);
+            TextboxWidget threadView = (TextboxWidget) listView.getChildAt(i);
+
+            if (threadView == null) {
+                threadView = new TextboxWidget(getActivity());
+                listView.addView(threadView);
+            }
+
+            threadView.setTitle(thread.getProcessName());
+            threadView.setSummary("TID " + thread.getProcessId());
+            threadView.setText(thread.getCoreUsage() + "%");
+        }
+
+        while (listView.getChildCount() > count) {
+            listView.removeViewAt(count);
+        }
+
+        view.findViewById(R.id.process_group_threads).setVisibility(count > 0 ? View.VISIBLE : View.GONE);
     }
 
     /*
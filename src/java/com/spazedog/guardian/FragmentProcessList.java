@@ -33,63 +33,35 @@ import android.view.View;
 import android.view.ViewGroup;
 
 import com.spazedog.guardian.AdapterProcessList.OnItemClickListener;
-import com.spazedog.guardian.application.Controller;
-import com.spazedog.guardian.application.Settings;
 import com.spazedog.guardian.scanner.ProcessScanner;
 import com.spazedog.guardian.scanner.ProcessScanner.ScanMode;
+import com.spazedog.guardian.scanner.SharedScanner;
+import com.spazedog.guardian.scanner.SharedScanner.IScanListener;
 import com.spazedog.guardian.scanner.containers.ProcList;
 import com.spazedog.guardian.utils.AbstractFragment;
 import com.spazedog.guardian.utils.AbstractHandler;
-import com.spazedog.guardian.utils.AbstractThread;
 import com.spazedog.lib.utilsLib.utils.Conversion;
 
+import java.util.HashSet;
+import java.util.Set;
+
 public class FragmentProcessList extends AbstractFragment implements OnItemClickListener {
 	
-	protected static class UsageWorker extends AbstractThread<FragmentProcessList> {
-		ProcList<?> mCachedScanner;
-		
-		public UsageWorker(FragmentProcessList reference) {
-			super(reference);
+	/*
+	 * How often the list is updated
+	 */
+	protected static final long USAGE_INTERVAL = 8000;
+
+	protected static class UsageListener implements IScanListener {
+		protected UsageHandler mHandler;
+
+		public UsageListener(UsageHandler handler) {
+			mHandler = handler;
 		}
-		
-		@Override 
-		public void onRun() {
-			FragmentProcessList fragment = getReference();
-			Settings settings = fragment.getSettings();
-			Controller controller = fragment.getController();
-			Integer timeout = fragment.mRecyclerAdapter.getItemCount() == 0 ? 1000 : 8000;
-			ScanMode mode = settings.monitorLinux() ? ScanMode.COLLECT_PROCESSES : ScanMode.COLLECT_APPLICATIONS;
-			
-			if (mCachedScanner != null || (fragment.mRecyclerAdapter.getItemCount() == 0 && fragment.mSystemProcess != null && fragment.mSystemProcess.getEntitySize() > 0)) {
-				if (mCachedScanner == null) {
-					mCachedScanner = fragment.mSystemProcess;
-					fragment.mSystemProcess = null;
-				}
-				
-				fragment.mUsageHandler.obtainMessage(0, mCachedScanner).sendToTarget(); mCachedScanner = null;
-				
-			} else {
-				ProcList<?> scanner = ProcessScanner.execute(controller, mode, fragment.mSystemProcess);
-				
-				if (scanner != null && (!isInterrupted() || fragment.mRecyclerAdapter.getItemCount() == 0)) {
-					if (!isInterrupted() && (!isLocked() || fragment.mRecyclerAdapter.getItemCount() == 0)) {
-						fragment.mUsageHandler.obtainMessage(0, scanner.sortEntities()).sendToTarget();
-						
-					} else {
-						mCachedScanner = scanner.sortEntities();
-					}
-				}
-			}
-			
-			if (!isInterrupted() && !isLocked()) {
-				do {
-					try {
-						sleep(100); timeout -= 100;
-						
-					} catch (Throwable e) {}
-					
-				} while (timeout > 0 && !isInterrupted() && !isLocked());
-			}
+
+		@Override
+		public void onScanResult(ScanMode mode, ProcList<?> processList) {
+			mHandler.obtainMessage(0, processList).sendToTarget();
 		}
 	}
 	
@@ -103,9 +75,13 @@ public class FragmentProcessList extends AbstractFragment implements OnItemClick
 			FragmentProcessList fragment = getReference();
 			ProcList<?> scanner = (ProcList<?>) msg.obj;
 			
-			if (fragment != null && fragment.mRecyclerView != null && scanner != null) {		
+			/*
+			 * The list is still updated while paused, if it does not have anything to show yet
+			 */
+			if (fragment != null && fragment.mRecyclerView != null && scanner != null && (fragment.mUsageLocks.isEmpty() || fragment.mRecyclerAdapter.getItemCount() == 0)) {
 				fragment.mRecyclerAdapter.updateDataSet(scanner);
 				fragment.mSystemProcess = scanner;
+				fragment.updateSubscription();
 			}
 		}
 	}
@@ -114,8 +90,9 @@ public class FragmentProcessList extends AbstractFragment implements OnItemClick
 	protected AdapterProcessList mRecyclerAdapter;
 	protected LayoutManager mRecyclerLayoutManager;
     
-	protected UsageWorker mUsageWorker;
+	protected UsageListener mUsageListener;
 	protected UsageHandler mUsageHandler;
+	protected Set<String> mUsageLocks = new HashSet<String>();
     
 	protected ProcList<?> mSystemProcess;
 	
@@ -161,13 +138,20 @@ public class FragmentProcessList extends AbstractFragment implements OnItemClick
 	public void onResume() {
 		super.onResume();
 		
-		if (ProcessScanner.hasLibrary()) {
-			mUsageHandler = new UsageHandler(this);
-			mUsageWorker = new UsageWorker(this);
-			mUsageWorker.start();
-			
-		} else {
-			mSnackBar = Snackbar.make(getView(), "The ProcessScanner Library has not been loaded", Snackbar.LENGTH_LONG);
+		mUsageHandler = new UsageHandler(this);
+		mUsageListener = new UsageListener(mUsageHandler);
+
+		if (mRecyclerAdapter.getItemCount() == 0 && mSystemProcess != null && mSystemProcess.getEntitySize() > 0) {
+			mRecyclerAdapter.updateDataSet(mSystemProcess);
+		}
+
+		updateSubscription();
+		
+		/*
+		 * Scanning still works without it, just slower
+		 */
+		if (!ProcessScanner.hasLibrary()) {
+			mSnackBar = Snackbar.make(getView(), "The ProcessScanner Library has not been loaded, using the Java scanner", Snackbar.LENGTH_LONG);
 			mSnackBar.show();
 		}
 	}
@@ -176,14 +160,11 @@ public class FragmentProcessList extends AbstractFragment implements OnItemClick
 	public void onPause() {
 		super.onPause();
 		
-		if (mUsageWorker != null) {
-			try {
-				mUsageWorker.interrupt();
-				mUsageWorker.join();
-				mUsageWorker = null;
-				mUsageHandler = null;
-				
-			} catch (InterruptedException e) {}
+		if (mUsageListener != null) {
+			getController().getSharedScanner().unsubscribe(mUsageListener);
+			mUsageHandler.removeMessages(0);
+			mUsageListener = null;
+			mUsageHandler = null;
 		}
 		
 		/*
@@ -238,11 +219,34 @@ public class FragmentProcessList extends AbstractFragment implements OnItemClick
 	}
 	
 	public void toggleWorkerLock(String id, Boolean lock) {
-		if (mUsageWorker != null && lock) {
-			mUsageWorker.lock(id);
+		if (lock) {
+			mUsageLocks.add(id);
 			
-		} else if (mUsageWorker != null) {
-			mUsageWorker.release(id);
+		} else {
+			mUsageLocks.remove(id);
+		}
+
+		updateSubscription();
+	}
+
+	/*
+	 * Only subscribe to the shared scanner while the list is visible and not paused,
+	 * so that it does not keep scanning for nothing
+	 */
+	protected void updateSubscription() {
+		if (mUsageListener != null) {
+			SharedScanner scanner = getController().getSharedScanner();
+
+			if (mUsageLocks.isEmpty() || mRecyclerAdapter.getItemCount() == 0) {
+				ScanMode mode = getSettings().monitorLinux() ? ScanMode.COLLECT_PROCESSES : ScanMode.COLLECT_APPLICATIONS;
+
+				if (!scanner.isSubscribed(mUsageListener, mode)) {
+					scanner.subscribe(mode, USAGE_INTERVAL, mUsageListener);
+				}
+
+			} else {
+				scanner.unsubscribe(mUsageListener);
+			}
 		}
 	}
 
@@ -28,6 +28,7 @@ import android.app.Application;
 import android.os.Message;
 
 import com.spazedog.guardian.Common;
+import com.spazedog.guardian.Constants;
 import com.spazedog.guardian.application.Settings.ISettingsListener;
 import com.spazedog.guardian.application.Settings.Type;
 import com.spazedog.guardian.backend.MonitorService.MonitorServiceControl;
@@ -35,6 +36,8 @@ import com.spazedog.guardian.backend.MonitorService.MonitorServiceControl.IMonit
 import com.spazedog.guardian.backend.MonitorService.MonitorServiceControl.Status;
 import com.spazedog.guardian.backend.xposed.WakeLockManager;
 import com.spazedog.guardian.scanner.ProcessScanner;
+import com.spazedog.guardian.scanner.ScanBenchmark;
+import com.spazedog.guardian.scanner.SharedScanner;
 import com.spazedog.guardian.utils.AbstractHandler;
 
 public class Controller extends Application implements ApplicationImpl, ISettingsListener, IMonitorServiceListener {
@@ -69,6 +72,7 @@ public class Controller extends Application implements ApplicationImpl, ISetting
 	
 	protected Settings mSettings;
 	protected WakeLockManager mWakelockManager;
+	protected SharedScanner mSharedScanner;
 	
 	@Override
 	public void onCreate() {
@@ -77,6 +81,10 @@ public class Controller extends Application implements ApplicationImpl, ISetting
         instantiateHandler();
         instantiateSettings();
         instantiateServiceControl();
+
+        if (Constants.ENABLE_SCAN_BENCHMARK) {
+            new ScanBenchmark().start();
+        }
 	}
 
     protected void instantiateHandler() {
@@ -142,6 +150,14 @@ public class Controller extends Application implements ApplicationImpl, ISetting
 
         return mWakelockManager;
 	}
+
+	public synchronized SharedScanner getSharedScanner() {
+		if (mSharedScanner == null) {
+			mSharedScanner = new SharedScanner(this);
+		}
+
+		return mSharedScanner;
+	}
 	
 	public void addServiceListener(IServiceListener listener) {
 		synchronized(mServiceListeners) {
@@ -162,25 +178,24 @@ public class Controller extends Application implements ApplicationImpl, ISetting
 	
 	public void startService() {
 		synchronized(mServiceLock) {
-			if (ProcessScanner.hasLibrary()) {
-				if (mServiceControl.status() == Status.STOPPED) {
-					String engine = mSettings.getServiceEngine();
-					
-					if (!mServiceControl.identifier().equals( engine )) {
-						Common.LOG.Debug(this, "Switching Service Engine from " + mServiceControl.identifier() + " to " + engine);
-						mServiceControl = MonitorServiceControl.getInstance(this, engine);
-						mServiceControl.setMonitorServiceListener(this);
-					}
-					
-					Common.LOG.Debug(this, "Requesting Service Start, Engine = " + mServiceControl.identifier());
-					mServiceControl.start();
-					
-				} else {
-					Common.LOG.Debug(this, "Request for Service Start failed as it is alrady started, Engine = " + mServiceControl.identifier());
+			if (!ProcessScanner.hasLibrary()) {
+				Common.LOG.Debug(this, "The ProcessScanner Library has not been loaded, the Service will use the Java scanner");
+			}
+			
+			if (mServiceControl.status() == Status.STOPPED) {
+				String engine = mSettings.getServiceEngine();
+				
+				if (!mServiceControl.identifier().equals( engine )) {
+					Common.LOG.Debug(this, "Switching Service Engine from " + mServiceControl.identifier() + " to " + engine);
+					mServiceControl = MonitorServiceControl.getInstance(this, engine);
+					mServiceControl.setMonitorServiceListener(this);
 				}
 				
+				Common.LOG.Debug(this, "Requesting Service Start, Engine = " + mServiceControl.identifier());
+				mServiceControl.start();
+				
 			} else {
-				Common.LOG.Error(this, "Request for Service Start failed as the ProcessScanner Library has not been loaded");
+				Common.LOG.Debug(this, "Request for Service Start failed as it is alrady started, Engine = " + mServiceControl.identifier());
 			}
 		}
 	}
@@ -82,6 +82,8 @@ public class Settings implements ApplicationImpl {
 	protected volatile Integer mSettingsServiceInterval;
 	protected volatile Integer mSettingsServiceThresholdOn;
 	protected volatile Integer mSettingsServiceThresholdOff;
+	protected volatile String mSettingsServiceThresholdUnit;
+	protected volatile String mSettingsServiceThresholdScope;
 	protected volatile String mSettingsServiceActionOn;
 	protected volatile String mSettingsServiceActionOff;
 	protected volatile String mSettingsServiceEngine;
@@ -250,6 +252,49 @@ public class Settings implements ApplicationImpl {
 		return interactive ? mSettingsServiceThresholdOn : mSettingsServiceThresholdOff;
 	}
 	
+	public void setServiceThresholdUnit(String unit) {
+		synchronized(mPreferences) {
+			if (!getServiceThresholdUnit().equals(unit)) {
+				mPreferences.edit().putString("cpu_threshold_unit", (mSettingsServiceThresholdUnit = unit)).apply();
+			}
+			
+			invokeServiceListeners(Type.SERVICE_THRESHOLD);
+		}
+	}
+	
+	/*
+	 * Either 'total' where 100% is all cores, or 'core' where 100% is a single core
+	 */
+	public String getServiceThresholdUnit() {
+		if (mSettingsServiceThresholdUnit == null) {
+			mSettingsServiceThresholdUnit = mPreferences.getString("cpu_threshold_unit", "total");
+		}
+		
+		return mSettingsServiceThresholdUnit;
+	}
+	
+	public void setServiceThresholdScope(String scope) {
+		synchronized(mPreferences) {
+			if (!getServiceThresholdScope().equals(scope)) {
+				mPreferences.edit().putString("cpu_threshold_scope", (mSettingsServiceThresholdScope = scope)).apply();
+			}
+			
+			invokeServiceListeners(Type.SERVICE_THRESHOLD);
+		}
+	}
+	
+	/*
+	 * Either 'process' where each process is checked on it's own, or 'application'
+	 * where the processes of a package is checked together
+	 */
+	public String getServiceThresholdScope() {
+		if (mSettingsServiceThresholdScope == null) {
+			mSettingsServiceThresholdScope = mPreferences.getString("cpu_threshold_scope", "process");
+		}
+		
+		return mSettingsServiceThresholdScope;
+	}
+	
 	public void setServiceWakeLockTime(Long lockTime) {
 		synchronized(mPreferences) {
 			if (!getServiceWakeLockTime().equals(lockTime)) {
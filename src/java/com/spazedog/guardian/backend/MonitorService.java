@@ -37,6 +37,7 @@ import com.spazedog.guardian.application.Controller;
 import com.spazedog.guardian.application.Settings;
 import com.spazedog.guardian.backend.PersistentService.PersistentServiceControl;
 import com.spazedog.guardian.backend.ScheduledService.ScheduledServiceControl;
+import com.spazedog.guardian.scanner.ProcessScanner;
 import com.spazedog.guardian.utils.AbstractHandler;
 
 public abstract class MonitorService extends IntentService {
@@ -56,11 +57,29 @@ public abstract class MonitorService extends IntentService {
 	}
 	
 	protected static int NOTIFICATION_ID = generateRandom();
+
+	/*
+	 * Keep the scanner buffers alive for as long as this service is running
+	 */
+	protected final ProcessScanner mProcessScanner = new ProcessScanner();
 	
 	public MonitorService(String name) {
 		super(name);
 		
 		setIntentRedelivery(true);
+
+		/*
+		 * The process list is handed from one scan to the next. The entities of the threshold items
+		 * are updated along with it, which is why these keeps the usage that they was flagged with.
+		 */
+		mProcessScanner.setDeltaScans(true);
+	}
+
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+
+		mProcessScanner.release();
 	}
 	
 	public Controller getController() {
@@ -82,7 +101,7 @@ public abstract class MonitorService extends IntentService {
 			extras = new Bundle();
 		}
 
-		MonitorWorker worker = new MonitorWorker(getController(), extras);
+		MonitorWorker worker = new MonitorWorker(getController(), mProcessScanner, extras);
         intent.putExtras(worker.start());
 		
 		intent.putExtras(extras);
@@ -28,8 +28,10 @@ import com.spazedog.guardian.db.WhiteListDB;
 import com.spazedog.guardian.scanner.EntityAndroid;
 import com.spazedog.guardian.scanner.ProcessScanner;
 import com.spazedog.guardian.scanner.ProcessScanner.ScanMode;
+import com.spazedog.guardian.scanner.StatSystem;
 import com.spazedog.guardian.scanner.containers.ProcEntity;
 import com.spazedog.guardian.scanner.containers.ProcList;
+import com.spazedog.guardian.scanner.containers.ProcStat;
 import com.spazedog.lib.rootfw4.Shell;
 import com.spazedog.lib.utilsLib.SparseMap;
 
@@ -40,28 +42,39 @@ import java.util.Set;
 
 public class MonitorWorker {
 
+    /*
+     * The oldest result from the shared scanner that is used instead of scanning
+     */
+    protected static final long SHARED_RESULT_AGE = 10000;
+
     protected Controller mController;
+    protected ProcessScanner mProcessScanner;
     protected Settings mSettings;
     protected boolean mIsInteractive;
     protected int mThresholdValue;
+    protected boolean mThresholdCores;
+    protected boolean mThresholdApplication;
     protected Bundle mDataBundle;
     protected SparseMap<ThresholdItem> mThresholdData = new SparseMap<ThresholdItem>();
     protected WhiteListDB mWhiteListDatabase;
 
     @SuppressWarnings("deprecation")
     @SuppressLint("NewApi")
-    public MonitorWorker(Controller controller, Bundle data) {
+    public MonitorWorker(Controller controller, ProcessScanner scanner, Bundle data) {
         PowerManager pm = (PowerManager) controller.getSystemService(Context.POWER_SERVICE);
         AudioManager am = (AudioManager) controller.getSystemService(Context.AUDIO_SERVICE);
 
         mDataBundle = data;
         mController = controller;
+        mProcessScanner = scanner;
         mSettings = controller.getSettings();
         mIsInteractive = am.getMode() != AudioManager.MODE_NORMAL
                 || am.isMusicActive()
                 || (android.os.Build.VERSION.SDK_INT >= 20 ? pm.isInteractive() : pm.isScreenOn());
 
         mThresholdValue = mSettings.getServiceThreshold(mIsInteractive);
+        mThresholdCores = "core".equals(mSettings.getServiceThresholdUnit());
+        mThresholdApplication = "application".equals(mSettings.getServiceThresholdScope());
         mWhiteListDatabase = mSettings.getWhiteListDatabase();
     }
 
@@ -69,7 +82,43 @@ public class MonitorWorker {
         SparseMap<ThresholdItem> lastThresholdData = mDataBundle.getParcelable("evaluate");
         SparseMap<ThresholdItem> currentThresholdData = mThresholdData;
         ScanMode scanMode = mSettings.monitorLinux() ? ScanMode.COLLECT_PROCESSES : ScanMode.COLLECT_APPLICATIONS;
-        ProcList<?> processList = ProcessScanner.execute(mController, scanMode, (ProcList<?>) mDataBundle.getParcelable("processes"));
+        ProcList<?> lastProcessList = mDataBundle.getParcelable("processes");
+        ProcList<?> processList = null;
+        boolean sharedResult = false;
+
+        /*
+         * While the screen is off, only the processes of the uids above the threshold is scanned.
+         * A regular scan is used if the device does not provide the time of each uid,
+         * or if the uids does not explain the CPU usage when Linux processes are monitored.
+         */
+        if (!mIsInteractive) {
+            mProcessScanner.setUidThreshold(mThresholdValue, mThresholdCores);
+            processList = mProcessScanner.execute(mController, ScanMode.COLLECT_UIDS, lastProcessList);
+
+            if (processList != null && mSettings.monitorLinux() && getUsage(processList) - getUidUsage(StatSystem.cast(processList)) > mThresholdValue) {
+                Common.LOG.Debug(this, "The uids does not explain the CPU usage, scanning all processes");
+
+                processList = null;
+            }
+        }
+
+        /*
+         * While the process list is open, the shared scanner is already sampling the same processes
+         */
+        if (processList == null && mIsInteractive) {
+            processList = mController.getSharedScanner().getResult(scanMode, SHARED_RESULT_AGE);
+
+            if (processList != null) {
+                Common.LOG.Debug(this, "Using the last result of the shared scanner");
+
+                sharedResult = true;
+            }
+        }
+
+        if (processList == null) {
+            processList = mProcessScanner.execute(mController, scanMode, lastProcessList);
+        }
+
         boolean scanWakelocks = !mIsInteractive && mController.getWakeLockManager() != null;
 
         Common.LOG.Debug(this, "Beginning analizing the scan result, Process Count = " + (processList != null ? processList.getEntitySize() : 0) + ", Evaluation Count = " + (lastThresholdData != null ? lastThresholdData.size() : 0));
@@ -87,7 +136,6 @@ public class MonitorWorker {
                     int pid = thresholdEntry.getKey();
                     ThresholdItem lastThresholdItem = thresholdEntry.getValue();
                     ThresholdItem currentThresholdItem = currentThresholdData.remove(pid);
-                    ProcEntity<?> lastEntity = lastThresholdItem != null ? lastThresholdItem.getEntity() : null;
                     ProcEntity<?> currentEntity = currentThresholdItem != null ? currentThresholdItem.getEntity() : null;
 
                     if (currentEntity != null) {
@@ -96,15 +144,15 @@ public class MonitorWorker {
                         int nextCheckCount = lastThresholdItem.getCheckCount()+1;
 
                         if ((currentFlags & ThresholdItem.FLAG_CPU) == ThresholdItem.FLAG_CPU) {
-                            if (lastThresholdItem.getCheckCount() > 0 && (lastFlags & ThresholdItem.FLAG_CPU) == ThresholdItem.FLAG_CPU && currentEntity.getCpuUsage() >= lastEntity.getCpuUsage()) {
-                                Common.LOG.Debug(this, "Adding process to the alert list, Check Count = " + lastThresholdItem.getCheckCount() + ", CPU Usage = " + currentEntity.getCpuUsage() + "%, PID = " + currentEntity.getProcessId() + ", Process Name = " + currentEntity.getProcessName());
+                            if (lastThresholdItem.getCheckCount() > 0 && (lastFlags & ThresholdItem.FLAG_CPU) == ThresholdItem.FLAG_CPU && getUsage(processList, currentEntity) >= lastThresholdItem.getUsage()) {
+                                Common.LOG.Debug(this, "Adding process to the alert list, Check Count = " + lastThresholdItem.getCheckCount() + ", CPU Usage = " + getUsage(processList, currentEntity) + "%, PID = " + currentEntity.getProcessId() + ", Process Name = " + currentEntity.getProcessName());
                                 roughItemList.add(currentThresholdItem);
 
                             } else {
-                                if (currentEntity.getCpuUsage() >= lastEntity.getCpuUsage()) {
-                                    Common.LOG.Debug(this, "Letting the process calm down until next check, Check Count = " + lastThresholdItem.getCheckCount() + ", CPU Usage = " + currentEntity.getCpuUsage() + "%, PID = " + currentEntity.getProcessId() + ", Process Name = " + currentEntity.getProcessName());
+                                if (getUsage(processList, currentEntity) >= lastThresholdItem.getUsage()) {
+                                    Common.LOG.Debug(this, "Letting the process calm down until next check, Check Count = " + lastThresholdItem.getCheckCount() + ", CPU Usage = " + getUsage(processList, currentEntity) + "%, PID = " + currentEntity.getProcessId() + ", Process Name = " + currentEntity.getProcessName());
                                 } else {
-                                    Common.LOG.Debug(this, "The process has calmed down a bit since last check, checking again later, Check Count = " + lastThresholdItem.getCheckCount() + ", CPU Usage = " + currentEntity.getCpuUsage() + "%, PID = " + currentEntity.getProcessId() + ", Process Name = " + currentEntity.getProcessName());
+                                    Common.LOG.Debug(this, "The process has calmed down a bit since last check, checking again later, Check Count = " + lastThresholdItem.getCheckCount() + ", CPU Usage = " + getUsage(processList, currentEntity) + "%, PID = " + currentEntity.getProcessId() + ", Process Name = " + currentEntity.getProcessName());
                                 }
 
                                 currentThresholdItem.setCheckCount(nextCheckCount);
@@ -156,7 +204,13 @@ public class MonitorWorker {
                 mDataBundle.remove("timeout");
             }
 
-            mDataBundle.putParcelable("processes", processList);
+            /*
+             * The shared scanner continues from it's own entities on it's own thread, so the next scan
+             * of this worker must not continue from them. It continues from the last list of it's own instead.
+             */
+            if (!sharedResult) {
+                mDataBundle.putParcelable("processes", processList);
+            }
         }
 
         return mDataBundle;
@@ -171,8 +225,80 @@ public class MonitorWorker {
         return timeout;
     }
 
+    /*
+     * On a device with 8 cores, a process that keeps one of them busy only uses 12.5% of the CPU.
+     * Measuring in core units lets the threshold catch these.
+     */
+    protected double getUsage(ProcStat<?> stat) {
+        return mThresholdCores ? stat.getCoreUsage() : stat.getCpuUsage();
+    }
+
+    protected double getUsage(StatSystem.Aggregate aggregate) {
+        return mThresholdCores ? aggregate.getCoreUsage() : aggregate.getCpuUsage();
+    }
+
+    /*
+     * Browsers and the like spreads their work across several processes, where none of them might reach the threshold.
+     * With the application scope the processes of a package counts as one, represented by the busiest of them,
+     * while the rest has no usage of their own.
+     */
+    protected double getUsage(ProcList<?> processList, ProcEntity<?> entity) {
+        StatSystem uidSystem = StatSystem.cast(processList);
+
+        if (uidSystem != null && uidSystem.getUidSize() > 0 && !entity.isMeasured()) {
+            return getUnmeasuredUsage(uidSystem, entity);
+        }
+
+        StatSystem systemProcess = mThresholdApplication ? StatSystem.cast(processList) : null;
+        StatSystem.Aggregate aggregate = systemProcess != null ? systemProcess.getPackageAggregate(entity.getPackageKey()) : null;
+
+        if (aggregate != null && aggregate.getProcessCount() > 1) {
+            return aggregate.getLargestEntity().getProcessId() == entity.getProcessId() ? getUsage(aggregate) : 0.0d;
+        }
+
+        return getUsage(entity);
+    }
+
+    /*
+     * While the screen is off, a uid that crosses the threshold has it's processes scanned for the first time,
+     * so they have nothing to measure against until the next scan. Until then the first of them is given
+     * the usage of the uid that is not explained by it's measured processes.
+     */
+    protected double getUnmeasuredUsage(StatSystem systemProcess, ProcEntity<?> entity) {
+        int uid = entity.getProcessUid();
+        double usage = mThresholdCores ? systemProcess.getUidCoreUsage(uid) : systemProcess.getUidUsage(uid);
+        boolean first = true;
+
+        for (ProcEntity<?> sibling : systemProcess.findEntitiesByUid(uid)) {
+            if (sibling.isMeasured()) {
+                usage -= getUsage(sibling);
+
+            } else if (first) {
+                if (sibling.getProcessId() != entity.getProcessId()) {
+                    return 0.0d;
+                }
+
+                first = false;
+            }
+        }
+
+        return Math.max(0.0d, usage);
+    }
+
+    protected double getUidUsage(StatSystem systemProcess) {
+        double usage = 0.0d;
+
+        for (int i=0; i < systemProcess.getUidSize(); i++) {
+            int uid = systemProcess.getUid(i);
+
+            usage += mThresholdCores ? systemProcess.getUidCoreUsage(uid) : systemProcess.getUidUsage(uid);
+        }
+
+        return usage;
+    }
+
     protected boolean checkProcessThreshold(ProcList<?> processList) {
-        double cpuUsage = processList.getCpuUsage();
+        double cpuUsage = getUsage(processList);
         boolean valid = true;
 
         if (processList != null && (cpuUsage > mThresholdValue || (cpuUsage > 0 && Constants.ENABLE_REPORT_TESTING))) {
@@ -180,7 +306,7 @@ public class MonitorWorker {
 
             for (ProcEntity<?> entity : processList) {
                 boolean important = mIsInteractive && entity.isPerceptible();
-                double usage = entity.getCpuUsage();
+                double usage = getUsage(processList, entity);
 
                 if ((usage > mThresholdValue && !important) || (usage > 0 && Constants.ENABLE_REPORT_TESTING)) {
                     if (!mWhiteListDatabase.hasEntity(entity.getProcessName())) {
@@ -198,6 +324,8 @@ public class MonitorWorker {
                             item.setEntity(entity, item.getFlags() | ThresholdItem.FLAG_CPU);
                         }
 
+                        item.setUsage(usage);
+
                         mThresholdData.put(pid, item);
 
                     } else {
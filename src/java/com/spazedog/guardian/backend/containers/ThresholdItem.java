@@ -43,6 +43,13 @@ public class ThresholdItem implements MultiParcelable {
     protected int mFlagThreshold = 0;
     protected ProcEntity<?> mEntity;
 
+    /*
+     * The CPU usage when the entity was flagged. A delta scan updates the entity in place,
+     * so it cannot be used to tell whether the usage has changed since then.
+     * It is only needed between two checks, so it is not stored as JSON.
+     */
+    protected double mUsage = 0.0d;
+
     public ThresholdItem(ProcEntity<?> entity, int flags) {
         setEntity(entity, flags);
     }
@@ -52,6 +59,7 @@ public class ThresholdItem implements MultiParcelable {
         mCount = in.readInt();
         mFlagThreshold = in.readInt();
         mEntity = in.readParcelable(ProcEntity.class.getClassLoader());
+        mUsage = in.readDouble();
     }
 
     public ThresholdItem(JSONParcel in) {
@@ -99,6 +107,7 @@ public class ThresholdItem implements MultiParcelable {
         out.writeInt(mCount);
         out.writeInt(mFlagThreshold);
         out.writeParcelable(mEntity, flags);
+        out.writeDouble(mUsage);
     }
 
     @Override
@@ -123,6 +132,14 @@ public class ThresholdItem implements MultiParcelable {
         mFlagThreshold = flags;
     }
 
+    public double getUsage() {
+        return mUsage;
+    }
+
+    public void setUsage(double usage) {
+        mUsage = usage;
+    }
+
     public int getCheckCount() {
         return mCount;
     }
@@ -36,7 +36,7 @@ import java.util.Iterator;
 
 public class AlertListDB extends SQLiteOpenHelper implements Iterable<ThresholdItem> {
 
-    private static final Integer DATABASE_VERSION = 4;
+    private static final Integer DATABASE_VERSION = 6;
     private static final String DATABASE_NAME = "alert_cache";
     private static final String TABLE_NAME = "alerts";
 
@@ -20,7 +20,6 @@
 package com.spazedog.guardian.scanner;
 
 
-import android.app.Activity;
 import android.app.ActivityManager;
 import android.app.ActivityManager.RunningAppProcessInfo;
 import android.content.Context;
@@ -38,8 +37,6 @@ import com.spazedog.guardian.scanner.containers.ProcEntity;
 import com.spazedog.lib.utilsLib.JSONParcel;
 import com.spazedog.lib.utilsLib.JSONParcel.JSONException;
 
-import java.util.List;
-
 public class EntityAndroid extends ProcEntity<EntityAndroid> {
 
     protected AndroidDataLoader mDataLoader;
@@ -74,14 +71,14 @@ public class EntityAndroid extends ProcEntity<EntityAndroid> {
         return mDataLoader;
     }
 
-    public void updateStat(String[] stat, EntityAndroid process, ProcessLockInfo processLockInfo) {
+    public void updateStat(ScanBuffer stat, EntityAndroid process, ProcessLockInfo processLockInfo) {
         updateStat(stat, process);
 
         mProcessLockInfo = processLockInfo;
     }
 
     @Override
-    public void updateStat(String[] stat, EntityAndroid process) {
+    public void updateStat(ScanBuffer stat, EntityAndroid process) {
         super.updateStat(stat, process);
 
         if (process != null) {
@@ -95,38 +92,49 @@ public class EntityAndroid extends ProcEntity<EntityAndroid> {
         }
     }
 
+    public void setProcessLockInfo(ProcessLockInfo processLockInfo) {
+        mProcessLockInfo = processLockInfo;
+    }
+
     public ProcessLockInfo getProcessLockInfo() {
         return mProcessLockInfo;
     }
 
-    /*
-     * Priorities:
-     *      1: CPU Usage
-     *      2: WakeLocks
-     *      3: Android Processes
-     */
     @Override
-    public int compareTo(ProcEntity<?> sibling) {
-        int comp = Double.compare(sibling.getCpuUsage(), getCpuUsage());
+    public String getPackageKey() {
+        String processName = getProcessName();
 
-        if (comp == 0) {
-            EntityAndroid androidSibling = cast(sibling);
+        if (processName != null && processName.contains(":")) {
+            return processName.substring(0, processName.indexOf(":"));
+        }
 
-            if (comp == 0 && mProcessLockInfo != null && androidSibling != null) {
-                if (androidSibling.mProcessLockInfo != null) {
-                    comp = (int) (androidSibling.mProcessLockInfo.getLockTime() - mProcessLockInfo.getLockTime());
+        return processName;
+    }
 
-                } else {
-                    comp = -1;
-                }
+    /*
+     * Priorities after CPU Usage:
+     *      1: WakeLocks
+     *      2: Android Processes
+     */
+    @Override
+    protected int compareEqualUsage(ProcEntity<?> sibling) {
+        EntityAndroid androidSibling = cast(sibling);
+        int comp = 0;
 
-            } else if (androidSibling != null && androidSibling.mProcessLockInfo != null) {
-                comp = 1;
-            }
+        if (mProcessLockInfo != null && androidSibling != null) {
+            if (androidSibling.mProcessLockInfo != null) {
+                comp = (int) (androidSibling.mProcessLockInfo.getLockTime() - mProcessLockInfo.getLockTime());
 
-            if (comp == 0) {
-                comp = sibling.getImportance() - getImportance();
+            } else {
+                comp = -1;
             }
+
+        } else if (androidSibling != null && androidSibling.mProcessLockInfo != null) {
+            comp = 1;
+        }
+
+        if (comp == 0) {
+            comp = super.compareEqualUsage(sibling);
         }
 
         return comp;
@@ -259,20 +267,7 @@ public class EntityAndroid extends ProcEntity<EntityAndroid> {
 
         protected RunningAppProcessInfo getAndroidAppInfo() {
             if (mAndroidAppInfo == null) {
-                int pid = getProcessId();
-                ActivityManager activityManager = (ActivityManager) mContext.getSystemService(Activity.ACTIVITY_SERVICE);
-                List<RunningAppProcessInfo> runningApps = activityManager.getRunningAppProcesses();
-
-                for(RunningAppProcessInfo appInfo : runningApps) {
-                    try {
-                        if (appInfo.pid == pid) {
-                            mAndroidAppInfo = appInfo;
-                        }
-
-                    } catch (Throwable e) {
-                        break;
-                    }
-                }
+                mAndroidAppInfo = RunningAppCache.find(mContext, getProcessId());
             }
 
             return mAndroidAppInfo;
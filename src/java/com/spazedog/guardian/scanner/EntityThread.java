@@ -0,0 +1,215 @@
+/*
+ * This file is part of the Guardian Project: https://github.com/spazedog/guardian
+ *
+ * Copyright (c) 2015 Daniel Bergløv
+ *
+ * Guardian is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Guardian is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Guardian. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.guardian.scanner;
+
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.os.Parcel;
+import android.util.Log;
+
+import com.spazedog.guardian.R;
+import com.spazedog.guardian.scanner.containers.ProcEntity;
+import com.spazedog.lib.utilsLib.JSONParcel;
+import com.spazedog.lib.utilsLib.JSONParcel.JSONException;
+
+/*
+ * A single thread within a process, collected by ScanMode.COLLECT_THREADS.
+ * The process id of this entity is the thread id, which for the main thread is the same as the process.
+ */
+public class EntityThread extends ProcEntity<EntityThread> {
+
+    protected int mThreadGroupId = 0;
+    protected ThreadDataLoader mDataLoader;
+
+    public static EntityThread cast(ProcEntity<?> instance) {
+        if (instance != null && instance instanceof EntityThread) {
+            return (EntityThread) instance;
+        }
+
+        return null;
+    }
+
+    public static ThreadDataLoader cast(DataLoader<?> instance) {
+        if (instance != null && instance instanceof ThreadDataLoader) {
+            return (ThreadDataLoader) instance;
+        }
+
+        return null;
+    }
+
+    public EntityThread() {
+        super();
+    }
+
+    @Override
+    public void updateStat(ScanBuffer stat, EntityThread thread) {
+        super.updateStat(stat, thread);
+
+        if (stat != null) {
+            /*
+             * Thread records use the type value for the pid of the owning process
+             */
+            mThreadGroupId = stat.getType();
+            mEntityImportance = 0;
+        }
+    }
+
+    /*
+     * The pid of the process that this thread belongs to
+     */
+    public int getThreadGroupId() {
+        return mThreadGroupId;
+    }
+
+    @Override
+    public ThreadDataLoader getDataLoader(Context context) {
+        if (mDataLoader == null) {
+            mDataLoader = new ThreadDataLoader(context);
+        }
+
+        return mDataLoader;
+    }
+
+
+
+    /* ============================================================================================================
+     * ------------------------------------------------------------------------------------------------------------
+     *
+     * PARCEL IMPLEMENTATION
+     *
+     * ------------------------------------------------------------------------------------------------------------
+     */
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        super.writeToParcel(out, flags);
+
+        out.writeInt(mThreadGroupId);
+    }
+
+    @Override
+    public void readFromParcel(Parcel in) {
+        super.readFromParcel(in);
+
+        mThreadGroupId = in.readInt();
+    }
+
+
+
+    /* ============================================================================================================
+     * ------------------------------------------------------------------------------------------------------------
+     *
+     * JSON IMPLEMENTATION
+     *
+     * ------------------------------------------------------------------------------------------------------------
+     */
+
+    @Override
+    public void writeToJSON(JSONParcel out) {
+        super.writeToJSON(out);
+
+        try {
+            out.writeInt(mThreadGroupId);
+
+        } catch (JSONException e) {
+            Log.e(getClass().getName(), e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void readFromJSON(JSONParcel in) {
+        super.readFromJSON(in);
+
+        try {
+            mThreadGroupId = in.readInt();
+
+        } catch (JSONException e) {
+            Log.e(getClass().getName(), e.getMessage(), e);
+        }
+    }
+
+
+
+    /* ============================================================================================================
+	 * ------------------------------------------------------------------------------------------------------------
+	 *
+	 * DATA LOADER CLASS
+	 *
+	 * ------------------------------------------------------------------------------------------------------------
+	 */
+
+    public class ThreadDataLoader extends DataLoader<ThreadDataLoader> {
+
+        protected ThreadDataLoader(Context context) {
+            super(context);
+        }
+
+        @Override
+        public JSONParcel getJSONParcel() {
+            try {
+                JSONParcel parcel = new JSONParcel(mContext);
+                parcel.writeJSONParcelable(EntityThread.this);
+
+                return parcel;
+
+            } catch (JSONException e) {
+                Log.e(getClass().getName(), e.getMessage(), e);
+            }
+
+            return null;
+        }
+
+        @Override
+        public Drawable getPackageDrawable() {
+            return mContext.getResources().getDrawable(R.drawable.process_icon);
+        }
+
+        @Override
+        public String getPackageName() {
+            return null;
+        }
+
+        @Override
+        public String getPackageLabel() {
+            return null;
+        }
+
+        @Override
+        public String getProcessName() {
+            return EntityThread.this.getProcessName();
+        }
+
+        @Override
+        public int getProcessUid() {
+            return EntityThread.this.getProcessUid();
+        }
+
+        @Override
+        public int getProcessId() {
+            return EntityThread.this.getProcessId();
+        }
+
+        @Override
+        public int getImportance() {
+            return EntityThread.this.getImportance();
+        }
+    }
+}
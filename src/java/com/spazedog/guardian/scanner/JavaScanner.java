@@ -0,0 +1,820 @@
+/*
+ * This file is part of the Guardian Project: https://github.com/spazedog/guardian
+ *
+ * Copyright (c) 2015 Daniel Bergløv
+ *
+ * Guardian is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Guardian is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Guardian. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.guardian.scanner;
+
+
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/*
+ * Java implementation of libprocessScanner.so, used when the library cannot be loaded.
+ * It produces the same records, so ProcessScanner.execute() works the same with both.
+ *
+ * Files are read into one reused buffer and parsed directly from it's bytes.
+ * The /proc/<pid>/stat channels are kept open between scans, like FLAG_SYSCALLS does in the library,
+ * so a known process only costs a single positional read.
+ */
+class JavaScanner {
+
+    /*
+     * Field positions in /proc/<pid>/stat, counted from zero. See proc(5)
+     */
+    private static final int STAT_PID = 0;
+    private static final int STAT_STATE = 2;
+    private static final int STAT_UTIME = 13;
+    private static final int STAT_STIME = 14;
+    private static final int STAT_CUTIME = 15;
+    private static final int STAT_CSTIME = 16;
+    private static final int STAT_STARTTIME = 21;
+    private static final int STAT_FIELDS = 22;
+
+    /*
+     * Each record is packed as longs, the last one holding the name offset and length
+     */
+    private static final int RECORD_LONGS = ScanBuffer.RECORD_SIZE / 8;
+
+    /*
+     * The max amount of stat channels that is kept open between scans
+     */
+    private static final int MAX_STAT_CHANNELS = 384;
+
+    /*
+     * Process information that does not change during the life of a process.
+     * A pid can be re-used by the kernel, so the start time is kept to tell whether
+     * a cached entry still belongs to the same process.
+     */
+    private static class Identity {
+        long starttime;
+        long uid;
+        long type;
+        String name;
+        boolean stable;
+        boolean sorted;
+        int generation;
+        FileChannel stat;
+    }
+
+    /*
+     * A process record as it was last handed over by a full scan.
+     * Delta scans (FLAG_DELTA) compares against these to leave out processes that has not changed.
+     */
+    private static class Reported {
+        final long[] record = new long[RECORD_LONGS];
+        String name;
+        int generation;
+    }
+
+    private final SparseArray<Reported> mReported = new SparseArray<Reported>();
+    private boolean[] mUnchanged = new boolean[256];
+    private int[] mExited = new int[32];
+
+    private final SparseArray<Identity> mIdentities = new SparseArray<Identity>();
+    private final SparseIntArray mListed = new SparseIntArray();
+    private int mGeneration = 0;
+    private int mStatChannels = 0;
+
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(8192);
+    private final byte[] mData = mReadBuffer.array();
+    private final long[] mFields = new long[STAT_FIELDS];
+    private final StringBuilder mPath = new StringBuilder(32);
+
+    private long[] mRecords = new long[RECORD_LONGS * 256];
+    private String[] mNames = new String[256];
+    private int mCount = 0;
+
+    private long mIdle = 0l;
+    private long mUptime = 0l;
+
+    /*
+     * Same contract as jniScan(), except that names are handed directly to the buffer
+     */
+    public int scan(int[] processes, int flags, ScanBuffer buffer) {
+        boolean all = (flags & ProcessScanner.FLAG_ALL) != 0;
+        boolean sort = (flags & ProcessScanner.FLAG_SORT) != 0;
+        boolean evaluate = (flags & ProcessScanner.FLAG_EVALUATE) != 0;
+        int exited = 0;
+
+        mCount = 0;
+        mGeneration++;
+        mListed.clear();
+
+        /*
+         * The CPU time of each uid is only read by the library, so a uid scan (FLAG_UIDS)
+         * has no uid records, which makes ProcessScanner use a regular scan instead
+         */
+        if (processes != null && (flags & ProcessScanner.FLAG_UIDS) == 0) {
+            for (int i=0; i+2 < processes.length; i += 3) {
+                mListed.put(processes[i], i);
+            }
+        }
+
+        collectCpu();
+
+        if ((flags & ProcessScanner.FLAG_THREADS) != 0) {
+            for (int i=0; i < mListed.size(); i++) {
+                int x = mListed.valueAt(i);
+
+                addThreads(processes[x], processes[x+1]);
+            }
+
+        } else if (all || sort) {
+            String[] files = new File("/proc").list();
+
+            if (files != null) {
+                for (String file : files) {
+                    int pid = parsePid(file);
+
+                    if (pid > 0) {
+                        int x = mListed.get(pid, -1);
+
+                        if (x >= 0) {
+                            addProcess(pid, processes[x+1], processes[x+2], true, flags);
+
+                        } else {
+                            addProcess(pid, 0, 0, false, flags);
+                        }
+                    }
+                }
+
+                /*
+                 * Forget processes that no longer exists
+                 */
+                for (int i=mIdentities.size()-1; i >= 0; i--) {
+                    Identity identity = mIdentities.valueAt(i);
+
+                    if (identity.generation != mGeneration) {
+                        closeStat(identity);
+                        mIdentities.removeAt(i);
+                    }
+                }
+            }
+
+        } else {
+            /*
+             * Only the listed processes are needed, so there is no reason to walk /proc.
+             * An evaluation scan reports those that could not be read as exited.
+             */
+            for (int i=0; i < mListed.size(); i++) {
+                int x = mListed.valueAt(i);
+                int count = mCount;
+
+                addProcess(processes[x], processes[x+1], processes[x+2], true, flags);
+
+                if (evaluate && mCount == count) {
+                    addExited(exited++, processes[x]);
+                }
+            }
+        }
+
+        boolean fullScan = (flags & (ProcessScanner.FLAG_EVALUATE | ProcessScanner.FLAG_THREADS | ProcessScanner.FLAG_UIDS)) == 0;
+        boolean delta = fullScan && (flags & ProcessScanner.FLAG_DELTA) != 0;
+
+        if (fullScan) {
+            exited = compareReported(delta);
+        }
+
+        if (delta || evaluate) {
+            mRecords[0] = exited;
+
+        } else {
+            exited = 0;
+        }
+
+        /*
+         * Write the records in the same layout as the library
+         */
+        buffer.ensureCapacity((mCount + exited) * ScanBuffer.RECORD_SIZE);
+
+        ByteBuffer out = buffer.getBuffer();
+        int count = 0;
+
+        for (int i=0; i < mCount; i++) {
+            if (!delta || !mUnchanged[i]) {
+                int offset = (count++) * ScanBuffer.RECORD_SIZE;
+
+                for (int y=0, x = i * RECORD_LONGS; y < RECORD_LONGS-1; y++) {
+                    out.putLong(offset + (y * 8), mRecords[x++]);
+                }
+
+                out.putInt(offset + ScanBuffer.RECORD_NAME_OFFSET, 0);
+                out.putInt(offset + ScanBuffer.RECORD_NAME_LENGTH, -1);
+            }
+        }
+
+        /*
+         * Exited processes is placed last with nothing but the pid
+         */
+        for (int i=0; i < exited; i++) {
+            int offset = (count++) * ScanBuffer.RECORD_SIZE;
+
+            for (int y=0; y < RECORD_LONGS-1; y++) {
+                out.putLong(offset + (y * 8), 0l);
+            }
+
+            out.putLong(offset + ScanBuffer.RECORD_PID, mExited[i]);
+            out.putInt(offset + ScanBuffer.RECORD_NAME_OFFSET, 0);
+            out.putInt(offset + ScanBuffer.RECORD_NAME_LENGTH, -1);
+        }
+
+        buffer.setRecordCount(count);
+
+        for (int i=0, x=0; i < mCount; i++) {
+            if (!delta || !mUnchanged[i]) {
+                buffer.moveToRecord(x++).setProcessName(mNames[i]);
+            }
+        }
+
+        for (int i=count-exited; i < count; i++) {
+            buffer.moveToRecord(i).setProcessName(null);
+        }
+
+        return count;
+    }
+
+    /*
+     * Close the stat channels that is kept open between scans
+     */
+    public void close() {
+        for (int i=0; i < mIdentities.size(); i++) {
+            closeStat(mIdentities.valueAt(i));
+        }
+
+        mIdentities.clear();
+        mReported.clear();
+    }
+
+    /*
+     * Replace the records of the last full scan with those of this one.
+     * Returns the number of processes that has exited since then, which is placed in mExited.
+     */
+    private int compareReported(boolean delta) {
+        int first = (int) mRecords[2] + 1;
+        int exited = 0;
+
+        if (mUnchanged.length < mCount) {
+            mUnchanged = new boolean[mCount * 2];
+        }
+
+        Arrays.fill(mUnchanged, 0, mCount, false);
+
+        for (int i=first; i < mCount; i++) {
+            int offset = i * RECORD_LONGS;
+            int pid = (int) mRecords[offset + 2];
+            Reported reported = mReported.get(pid);
+
+            if (reported == null) {
+                reported = new Reported();
+                mReported.put(pid, reported);
+
+            } else if (delta) {
+                mUnchanged[i] = isUnchanged(reported, offset, mNames[i]);
+            }
+
+            System.arraycopy(mRecords, offset, reported.record, 0, RECORD_LONGS);
+            reported.name = mNames[i];
+            reported.generation = mGeneration;
+        }
+
+        for (int i=mReported.size()-1; i >= 0; i--) {
+            if (mReported.valueAt(i).generation != mGeneration) {
+                addExited(exited++, mReported.keyAt(i));
+                mReported.removeAt(i);
+            }
+        }
+
+        return exited;
+    }
+
+    private void addExited(int index, int pid) {
+        if (mExited.length <= index) {
+            int[] pids = new int[mExited.length * 2];
+            System.arraycopy(mExited, 0, pids, 0, mExited.length);
+            mExited = pids;
+        }
+
+        mExited[index] = pid;
+    }
+
+    /*
+     * Idle and uptime is the same for all processes, and is received with the CPU record
+     */
+    private boolean isUnchanged(Reported reported, int offset, String name) {
+        for (int i=0; i < RECORD_LONGS-1; i++) {
+            if (i != 2 && i != 8 && i != 9 && reported.record[i] != mRecords[offset + i]) {
+                return false;
+            }
+        }
+
+        return name == null ? reported.name == null : name.equals(reported.name);
+    }
+
+    /*
+     * The CPU record is always first, followed by one record per online core
+     */
+    private void collectCpu() {
+        int length = readFile("/proc/stat");
+        int cpu = addRecord(null);
+        int cores = 0;
+        int line = 0;
+
+        mIdle = 0l;
+        mUptime = 0l;
+
+        /*
+         * Only complete lines are used, the buffer does not hold all of /proc/stat
+         *
+         *      cpu  7650947 104625 1567588 52176062 744598 139 40697 0 0 0
+         *      cpu0 1928133 25541 412470 12794437 195214 139 28720 0 0 0
+         */
+        while (line + 3 < length && mData[line] == 'c' && mData[line+1] == 'p' && mData[line+2] == 'u') {
+            int end = indexOf(line, length, '\n');
+            int pos = line + 3;
+            int core = -1;
+
+            if (end < 0) {
+                break;
+            }
+
+            while (pos < end && mData[pos] >= '0' && mData[pos] <= '9') {
+                core = (core < 0 ? 0 : core * 10) + (mData[pos++] - '0');
+            }
+
+            long idle = 0l;
+            long uptime = 0l;
+
+            for (int field=1; pos < end; field++) {
+                while (pos < end && mData[pos] == ' ') {
+                    pos++;
+                }
+
+                long value = 0l;
+
+                while (pos < end && mData[pos] >= '0' && mData[pos] <= '9') {
+                    value = (value * 10) + (mData[pos++] - '0');
+                }
+
+                if (field == 4) {
+                    idle = value;
+                }
+
+                uptime += value;
+            }
+
+            if (core < 0) {
+                mIdle = idle;
+                mUptime = uptime;
+
+            } else {
+                int record = addRecord(null);
+
+                mRecords[record + 2] = core;
+                mRecords[record + 8] = idle;
+                mRecords[record + 9] = uptime;
+                cores++;
+            }
+
+            line = end + 1;
+        }
+
+        mRecords[cpu + 2] = cores;
+        mRecords[cpu + 8] = mIdle;
+        mRecords[cpu + 9] = mUptime;
+    }
+
+    private void addProcess(int pid, long uid, long type, boolean listed, int flags) {
+        Identity identity = mIdentities.get(pid);
+
+        if (identity == null) {
+            identity = new Identity();
+            mIdentities.put(pid, identity);
+        }
+
+        identity.generation = mGeneration;
+
+        if (!listed && (flags & (ProcessScanner.FLAG_ALL | ProcessScanner.FLAG_SORT)) == 0) {
+            return;
+        }
+
+        int length = readStat(pid, identity);
+
+        if (length <= 0 || !parseStat(length)) {
+            /*
+             * The process has died
+             */
+            closeStat(identity);
+            mIdentities.remove(pid);
+
+            return;
+        }
+
+        /*
+         * Name, uid and process type does not change during the life of a process.
+         * So we only resolve these when we see a new process, or when a pid has been
+         * re-used by another process, which we can tell by the start time.
+         */
+        if (identity.starttime != mFields[STAT_STARTTIME] || !identity.stable) {
+            identity.starttime = mFields[STAT_STARTTIME];
+            identity.name = getStatName();
+            identity.uid = 0;
+            identity.type = 0;
+            identity.sorted = false;
+
+            String name = readName(pid);
+
+            if (name != null) {
+                identity.name = name;
+            }
+
+            /*
+             * Newly forked Android processes is named after zygote until the
+             * process has been specialized. Keep checking these until they get their real name.
+             */
+            identity.stable = identity.name.length() > 0
+                    && !identity.name.equals("zygote")
+                    && !identity.name.equals("zygote64")
+                    && !identity.name.equals("<pre-initialized>");
+        }
+
+        if (!listed && (flags & ProcessScanner.FLAG_SORT) != 0) {
+            if (!identity.sorted) {
+                identity.sorted = true;
+                identity.type = sortProcess(pid, identity) ? 1 : 0;
+            }
+
+            uid = identity.uid;
+            type = identity.type;
+            listed = type > 0;
+        }
+
+        if (listed || (flags & ProcessScanner.FLAG_ALL) != 0) {
+            int record = addRecord(identity.name);
+
+            mRecords[record] = type;
+            mRecords[record + 1] = uid;
+            mRecords[record + 2] = pid;
+            mRecords[record + 3] = mFields[STAT_UTIME];
+            mRecords[record + 4] = mFields[STAT_STIME];
+            mRecords[record + 5] = mFields[STAT_CUTIME];
+            mRecords[record + 6] = mFields[STAT_CSTIME];
+            mRecords[record + 7] = mFields[STAT_STARTTIME];
+            mRecords[record + 8] = mIdle;
+            mRecords[record + 9] = mUptime;
+        }
+    }
+
+    private void addThreads(int pid, long uid) {
+        mPath.setLength(0);
+        mPath.append("/proc/").append(pid).append("/task");
+
+        String[] files = new File(mPath.toString()).list();
+
+        if (files == null) {
+            return;
+        }
+
+        for (String file : files) {
+            if (parsePid(file) <= 0) {
+                continue;
+            }
+
+            mPath.setLength(0);
+            mPath.append("/proc/").append(pid).append("/task/").append(file).append("/stat");
+
+            int length = readFile(mPath.toString());
+
+            if (length > 0 && parseStat(length)) {
+                /*
+                 * Type holds the pid of the process that owns the thread,
+                 * and thread names are always sent
+                 */
+                int record = addRecord(getStatName());
+
+                mRecords[record] = pid;
+                mRecords[record + 1] = uid;
+                mRecords[record + 2] = mFields[STAT_PID];
+                mRecords[record + 3] = mFields[STAT_UTIME];
+                mRecords[record + 4] = mFields[STAT_STIME];
+                mRecords[record + 7] = mFields[STAT_STARTTIME];
+                mRecords[record + 8] = mIdle;
+                mRecords[record + 9] = mUptime;
+            }
+        }
+    }
+
+    /*
+     * Returns the offset of a new and empty record
+     */
+    private int addRecord(String name) {
+        int offset = mCount * RECORD_LONGS;
+
+        if (mRecords.length < offset + RECORD_LONGS) {
+            long[] records = new long[mRecords.length * 2];
+            System.arraycopy(mRecords, 0, records, 0, mRecords.length);
+            mRecords = records;
+        }
+
+        if (mNames.length <= mCount) {
+            String[] names = new String[mNames.length * 2];
+            System.arraycopy(mNames, 0, names, 0, mNames.length);
+            mNames = names;
+        }
+
+        for (int i=0; i < RECORD_LONGS; i++) {
+            mRecords[offset + i] = 0l;
+        }
+
+        mNames[mCount++] = name;
+
+        return offset;
+    }
+
+    /*
+     * The stat file of a process is re-generated each time it is read,
+     * so we can keep it open and read it from the beginning during each scan.
+     * Reading a channel of a process that has died fails, even if the pid has been re-used.
+     */
+    private int readStat(int pid, Identity identity) {
+        for (int i=0; i < 2; i++) {
+            if (identity.stat == null) {
+                mPath.setLength(0);
+                mPath.append("/proc/").append(pid).append("/stat");
+
+                try {
+                    identity.stat = new RandomAccessFile(mPath.toString(), "r").getChannel();
+                    mStatChannels++;
+
+                } catch (IOException e) {
+                    return 0;
+                }
+            }
+
+            try {
+                mReadBuffer.clear();
+
+                int length = identity.stat.read(mReadBuffer, 0);
+
+                if (length > 0) {
+                    if (mStatChannels > MAX_STAT_CHANNELS) {
+                        closeStat(identity);
+                    }
+
+                    return length;
+                }
+
+            } catch (IOException e) {}
+
+            closeStat(identity);
+        }
+
+        return 0;
+    }
+
+    private void closeStat(Identity identity) {
+        if (identity.stat != null) {
+            try {
+                identity.stat.close();
+
+            } catch (IOException e) {}
+
+            identity.stat = null;
+            mStatChannels--;
+        }
+    }
+
+    /*
+     * Reads the beginning of a file into the read buffer, which is enough for everything but the stat files
+     */
+    private int readFile(String path) {
+        FileInputStream stream = null;
+        int length = 0;
+
+        try {
+            stream = new FileInputStream(path);
+            FileChannel channel = stream.getChannel();
+            int size;
+
+            mReadBuffer.clear();
+
+            while (mReadBuffer.hasRemaining() && (size = channel.read(mReadBuffer)) > 0) {
+                length += size;
+            }
+
+        } catch (IOException e) {
+            length = 0;
+
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+
+                } catch (IOException e) {}
+            }
+        }
+
+        return length;
+    }
+
+    /*
+     * Position of the name in the last parsed stat line
+     */
+    private int mNameBegin = 0;
+    private int mNameEnd = 0;
+
+    /*
+     * Parse the selected fields of a stat line in the read buffer into mFields.
+     * The process name can contain both spaces and ')', so the name ends
+     * at the last ')' in the line, not the first.
+     *
+     *      21 (migration/2) S 2 0 0 0 -1 69247040 0 0 0 0 0 44 0 0 -100 0 1 0 7 0 .........
+     */
+    private boolean parseStat(int length) {
+        int open = indexOf(0, length, '(');
+        int close = length;
+
+        while (close > 0 && mData[close-1] != ')') {
+            close--;
+        }
+
+        if (open < 0 || close <= open) {
+            return false;
+        }
+
+        mFields[STAT_PID] = parseLong(0, open);
+        mNameBegin = open + 1;
+        mNameEnd = close - 1;
+
+        int pos = close;
+
+        for (int field=STAT_STATE; field < STAT_FIELDS && pos < length; field++) {
+            while (pos < length && mData[pos] == ' ') {
+                pos++;
+            }
+
+            int begin = pos;
+
+            while (pos < length && mData[pos] != ' ' && mData[pos] != '\n') {
+                pos++;
+            }
+
+            mFields[field] = field > STAT_STATE ? parseLong(begin, pos) : 0l;
+        }
+
+        return true;
+    }
+
+    /*
+     * The name is only turned into a String when it is needed,
+     * which is before anything else is read into the buffer
+     */
+    private String getStatName() {
+        return new String(mData, mNameBegin, mNameEnd - mNameBegin);
+    }
+
+    /*
+     * The first part of /proc/<pid>/cmdline, without the path or any arguments
+     */
+    private String readName(int pid) {
+        mPath.setLength(0);
+        mPath.append("/proc/").append(pid).append("/cmdline");
+
+        int length = readFile(mPath.toString());
+        int end = indexOf(0, length, 0);
+
+        if (end < 0) {
+            end = length;
+        }
+
+        if (end > 0) {
+            int slash = indexOf(0, end, '/');
+            int dash = indexOf(0, end, '-');
+            int begin = 0;
+
+            if (slash == 0) {
+                /*
+                 * Some cmdline files contains something like "/system/bin/binary--command-args"
+                 * We only want the name, not the path or the args.
+                 */
+                begin = lastIndexOf(0, dash >= 0 ? dash : end, '/') + 1;
+                end = dash >= 0 ? dash : end;
+
+            } else if (slash > 0) {
+                end = slash;
+
+            } else if (dash >= 0) {
+                end = dash;
+            }
+
+            if (end > begin) {
+                return new String(mData, begin, end - begin);
+            }
+        }
+
+        return null;
+    }
+
+    /*
+     * Android processes are placed in a uid cgroup, which also tells us the uid
+     *
+     *      1:cpuacct:/uid/xxxxx
+     *      1:cpuacct:/uid_xxxxx/pid_yyyyy
+     */
+    private boolean sortProcess(int pid, Identity identity) {
+        mPath.setLength(0);
+        mPath.append("/proc/").append(pid).append("/cgroup");
+
+        int length = readFile(mPath.toString());
+
+        for (int pos=0; pos + 4 < length; pos++) {
+            if (mData[pos] == 'u' && mData[pos+1] == 'i' && mData[pos+2] == 'd') {
+                int begin = pos + 4;
+                int end = begin;
+
+                while (end < length && mData[end] != '/' && mData[end] != '\n') {
+                    end++;
+                }
+
+                identity.uid = parseLong(begin, end);
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private long parseLong(int begin, int end) {
+        long value = 0l;
+        boolean negative = begin < end && mData[begin] == '-';
+
+        for (int i = negative ? begin + 1 : begin; i < end; i++) {
+            int digit = mData[i] - '0';
+
+            if (digit >= 0 && digit <= 9) {
+                value = (value * 10) + digit;
+            }
+        }
+
+        return negative ? -value : value;
+    }
+
+    private int indexOf(int begin, int end, int value) {
+        for (int i=begin; i < end; i++) {
+            if (mData[i] == value) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private int lastIndexOf(int begin, int end, int value) {
+        for (int i=end-1; i >= begin; i--) {
+            if (mData[i] == value) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static int parsePid(String name) {
+        int pid = 0;
+
+        for (int i=0; i < name.length(); i++) {
+            int digit = name.charAt(i) - '0';
+
+            if (digit < 0 || digit > 9) {
+                return 0;
+            }
+
+            pid = (pid * 10) + digit;
+        }
+
+        return pid;
+    }
+}
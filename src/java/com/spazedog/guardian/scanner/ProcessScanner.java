@@ -19,10 +19,11 @@
 
 package com.spazedog.guardian.scanner;
 
-import android.app.ActivityManager;
 import android.app.ActivityManager.RunningAppProcessInfo;
 import android.content.Context;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 
 import com.spazedog.guardian.Common;
 import com.spazedog.guardian.Constants;
@@ -32,7 +33,10 @@ import com.spazedog.guardian.backend.xposed.WakeLockService.ProcessLockInfo;
 import com.spazedog.guardian.scanner.containers.ProcEntity;
 import com.spazedog.guardian.scanner.containers.ProcList;
 
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ProcessScanner {
 	
@@ -40,14 +44,29 @@ public class ProcessScanner {
 		COLLECT_CPU, 				// Only get the CPU stat content
 		COLLECT_PROCESSES, 			// Get the stat content for all currently running processes
 		COLLECT_APPLICATIONS, 		// Only get the stat content for currently running Android processes
-		EVALUATE_COLLECTION 		// Only get the stat content for the defined processes
+		EVALUATE_COLLECTION, 		// Only get the stat content for the defined processes
+		COLLECT_THREADS, 			// Get the stat content for each thread of the defined processes
+		COLLECT_UIDS 				// Get the CPU time of each uid, and the stat content for the processes of those above the uid threshold
 	}
 
     /*
      * These are also defined in ProcessScanner.cpp
      */
-    private static final int FLAG_ALL = 0x00000001;
-    private static final int FLAG_SORT = 0x00000002;
+    static final int FLAG_ALL = 0x00000001;
+    static final int FLAG_SORT = 0x00000002;
+    static final int FLAG_EVALUATE = 0x00000004;
+    static final int FLAG_SYSCALLS = 0x00000008;
+    static final int FLAG_THREADS = 0x00000010;
+    static final int FLAG_TASKSTATS = 0x00000020;
+    static final int FLAG_DELTA = 0x00000040;
+    static final int FLAG_UIDS = 0x00000080;
+    static final int FLAG_EVENTS = 0x00000100;
+    static final int FLAG_SEQUENTIAL = 0x00000200;
+
+    /*
+     * Also defined in ProcessScanner.cpp, which will not use more than this
+     */
+    public static final int MAX_WORKERS = 4;
 
     private static boolean oCheckServiceManager = true;
 	
@@ -76,134 +95,698 @@ public class ProcessScanner {
 
         private static native void jniInit(boolean debug);
 
+		/*
+		 * Each instance has it's own handle to the library, which holds it's caches,
+		 * buffers and worker threads. Scans on different handles can run at the same time.
+		 */
+		private static native long jniCreate();
+		private static native void jniDestroy(long handle);
+
 		/*
 		 * pidList:
 		 * 					pidList[i] = Process ID
 		 * 				    pidList[i+1] = Process UID
 		 * 					pidList[i+2] = Process Type (1 or Importance for Android and 0 for Linux)
 		 * 					...
+		 *
+		 * threads:
+		 * 					The amount of threads that the stat reading can be shared between.
+		 * 					The library starts these the first time they are needed and keeps them waiting between scans.
+		 *
+		 * buffer:
+		 * 					Direct buffer that receives the CPU and core records followed by one record per process, see ScanBuffer.
+		 * 					A name is only written when it has changed since it was last received.
+		 * 					With FLAG_THREADS it instead receives one record per thread of the listed processes,
+		 * 					always with a name and with the pid of the owning process as type.
+		 * 					With FLAG_DELTA it only receives the processes that has changed since the last full scan,
+		 * 					followed by one record per process from that scan which has exited.
+		 * 					With FLAG_EVALUATE the listed processes are read directly without walking /proc,
+		 * 					followed by one record per listed process which has exited.
+		 * 					With FLAG_UIDS the core records are followed by one record per uid with it's CPU time.
+		 * 					The pid values of pidList then contains uids, whose processes follows the uid records.
+		 * 					If the last scan was a uid scan without a pidList, it's CPU records are repeated and no uid records are read.
+		 * 					With FLAG_EVENTS a full scan also receives the processes that started and exited since the last one,
+		 * 					after the rest of the processes and always with a name.
+		 * 					With FLAG_SEQUENTIAL the stat files are read one at a time, even where FLAG_SYSCALLS could use io_uring.
+		 *
+		 * Returns the number of records, or the negative amount of bytes needed if the buffer is to small.
+		 */
+		private static native int jniScan(long handle, int[] processes, int flags, int threads, ByteBuffer buffer);
+
+		private long mHandle = 0l;
+
+		/*
+		 * The names received from jniScan(), which only sends those that has changed.
+		 * Two maps are swapped between full scans, as the library forgets names of processes
+		 * that was not part of the last full scan.
+		 */
+		private SparseArray<String> mProcessNames = new SparseArray<String>();
+		private SparseArray<String> mProcessNamesNext = new SparseArray<String>();
+
+		/*
+		 * Used in place of the library when it could not be loaded
+		 */
+		private JavaScanner mJavaScanner;
+
+		protected synchronized int scanRecords(int[] processes, int flags, int threads, ScanBuffer buffer) {
+			int count;
+
+			if (!oIsLoaded) {
+				if (mJavaScanner == null) {
+					mJavaScanner = new JavaScanner();
+				}
+
+				count = mJavaScanner.scan(processes, flags, buffer);
+
+			} else {
+				count = scanLibrary(processes, flags, threads, buffer);
+			}
+
+			buffer.setDelta(count > 0 && (flags & FLAG_DELTA) != 0);
+
+			return count;
+		}
+
+		synchronized int scanLibrary(int[] processes, int flags, int threads, ScanBuffer buffer) {
+			if (mHandle == 0l) {
+				mHandle = jniCreate();
+			}
+
+			int count = jniScan(mHandle, processes, flags, threads, buffer.getBuffer());
+
+			if (count > 0) {
+				boolean delta = (flags & FLAG_DELTA) != 0;
+				boolean fullScan = (flags & (FLAG_EVALUATE | FLAG_UIDS)) == 0 && !delta;
+				SparseArray<String> processNames = fullScan ? mProcessNamesNext : mProcessNames;
+
+				buffer.setRecordCount(count);
+
+				/*
+				 * Thread names are always sent, and is kept out of the process names
+				 * as the main thread has the same id as it's process
+				 */
+				if ((flags & FLAG_THREADS) != 0) {
+					for (int i=buffer.getFirstProcess(); i < count; i++) {
+						buffer.moveToRecord(i).setProcessName(buffer.readProcessName());
+					}
+
+					return count;
+				}
+
+				if (fullScan) {
+					processNames.clear();
+				}
+
+				for (int i=buffer.getFirstProcess(); i < buffer.getProcessEnd(); i++) {
+					int pid = buffer.moveToRecord(i).getProcessId();
+					String name = buffer.readProcessName();
+
+					if (name == null) {
+						name = mProcessNames.get(pid);
+					}
+
+					processNames.put(pid, name);
+					buffer.setProcessName(name);
+				}
+
+				/*
+				 * Bursts has already exited, so their names are not kept
+				 */
+				for (int i=buffer.getProcessEnd(); i < buffer.getBurstEnd(); i++) {
+					buffer.moveToRecord(i).setProcessName(buffer.readProcessName());
+				}
+
+				/*
+				 * Processes left out of a delta scan keeps their names,
+				 * so only those that has exited are removed
+				 */
+				for (int i=buffer.getBurstEnd(); i < count; i++) {
+					processNames.remove(buffer.moveToRecord(i).getProcessId());
+				}
+
+				if (fullScan) {
+					mProcessNamesNext = mProcessNames;
+					mProcessNames = processNames;
+				}
+			}
+
+			return count;
+		}
+
+		/*
+		 * Free the library handle along with it's open files and worker threads.
+		 * The next scan will start over with a new one.
 		 */
-		private static synchronized native List<String[]> jniScan(int[] processes, int flags);
+		public synchronized void release() {
+			if (mHandle != 0l) {
+				jniDestroy(mHandle);
+				mHandle = 0l;
+			}
+
+			if (mJavaScanner != null) {
+				mJavaScanner.close();
+				mJavaScanner = null;
+			}
+
+			mProcessNames.clear();
+			mProcessNamesNext.clear();
+			mDeltaList = null;
+		}
+
+		@Override
+		protected void finalize() throws Throwable {
+			try {
+				release();
+
+			} finally {
+				super.finalize();
+			}
+		}
 	
 	/*
 	 * ============================================================
 	 */
 
-    public static ProcList<?> execute(Context context, ScanMode mode, ProcList<?> processList) {
-        if (hasLibrary()) {
-            int flags = mode == ScanMode.COLLECT_PROCESSES ? FLAG_ALL : 0;
-            int [] processes = null;
+    /*
+     * Reused between scans of this instance
+     */
+    protected final ScanBuffer mScanBuffer = new ScanBuffer();
+    protected final Map<String, ProcessLockInfo> mLockIndex = new HashMap<String, ProcessLockInfo>();
+
+    protected boolean mUseSyscalls = false;
+
+    /*
+     * Let the library read /proc using getdents64, openat and pread on descriptors
+     * that are kept open between scans, instead of readdir and file streams.
+     */
+    public synchronized void setSyscallBackend(boolean enabled) {
+        mUseSyscalls = enabled;
+    }
+
+    public synchronized boolean isSyscallBackend() {
+        return mUseSyscalls;
+    }
+
+    protected boolean mUseTaskstats = false;
 
-            if (mode == ScanMode.EVALUATE_COLLECTION && processList != null) {
-                processes = new int[processList.getEntitySize() * 3];
+    /*
+     * Let the library get the process times from the kernel's taskstats netlink interface,
+     * which also provides the delay accounting of each process.
+     * The kernel only allows this with CAP_NET_ADMIN, so for a regular
+     * application the library will simply continue to read /proc.
+     */
+    public synchronized void setTaskstatsBackend(boolean enabled) {
+        mUseTaskstats = enabled;
+    }
+
+    public synchronized boolean isTaskstatsBackend() {
+        return mUseTaskstats;
+    }
+
+    protected boolean mUseEvents = false;
+
+    /*
+     * Let the library keep a table of running processes from the kernel's process events,
+     * instead of walking /proc during each scan. Processes that both started and exited
+     * between two full scans are then also part of the second one.
+     * Older kernels only allow this with CAP_NET_ADMIN, in which case /proc is walked as usual.
+     */
+    public synchronized void setProcEvents(boolean enabled) {
+        mUseEvents = enabled;
+    }
+
+    public synchronized boolean isProcEvents() {
+        return mUseEvents;
+    }
+
+    protected boolean mUseDelta = false;
+    protected ProcList<?> mDeltaList;
+
+    /*
+     * Let the library leave out processes that has not changed since the last full scan,
+     * when execute() is given the list that it returned from that scan.
+     * The list is then updated and returned, instead of building a new one,
+     * so it must not be in use elsewhere while scanning.
+     */
+    public synchronized void setDeltaScans(boolean enabled) {
+        mUseDelta = enabled;
+        mDeltaList = null;
+    }
+
+    public synchronized boolean isDeltaScans() {
+        return mUseDelta;
+    }
+
+    protected int mWorkerCount = 1;
+
+    /*
+     * Share the stat reading of large scans between multiple threads.
+     * This lowers the time a scan takes on multi-core devices, but wakes more cores to do it,
+     * so it is meant for scans where someone is waiting for the result rather than background monitoring.
+     */
+    public synchronized void setWorkerCount(int count) {
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        if (count > cores) {
+            count = cores;
+        }
+
+        if (count > MAX_WORKERS) {
+            count = MAX_WORKERS;
+        }
+
+        mWorkerCount = count > 1 ? count : 1;
+    }
+
+    public synchronized int getWorkerCount() {
+        return mWorkerCount;
+    }
+
+    protected double mUidThreshold = 0.0d;
+    protected boolean mUidThresholdCores = false;
+
+    /*
+     * ScanMode.COLLECT_UIDS only scans the processes of uids with a usage above this,
+     * or that holds a wakelock. With 'cores' the usage is measured in units of a single core.
+     */
+    public synchronized void setUidThreshold(double usage, boolean cores) {
+        mUidThreshold = usage;
+        mUidThresholdCores = cores;
+    }
+
+    public synchronized double getUidThreshold() {
+        return mUidThreshold;
+    }
+
+    /*
+     * Scans are made by libprocessScanner.so, or by JavaScanner if the library is not available
+     */
+    public synchronized ProcList<?> execute(Context context, ScanMode mode, ProcList<?> processList) {
+        int flags = mode == ScanMode.COLLECT_PROCESSES ? FLAG_ALL : 0;
+        int [] processes = null;
+
+        /*
+         * Scans that are given Android's running processes fetches a new list of them,
+         * others lets the data loaders fetch one when they need it
+         */
+        RunningAppCache.expire();
+
+        if (mUseSyscalls) {
+            flags |= FLAG_SYSCALLS;
+        }
+
+        if (mUseTaskstats) {
+            flags |= FLAG_TASKSTATS;
+        }
+
+        if (mUseEvents) {
+            flags |= FLAG_EVENTS;
+        }
+
+        if (mode == ScanMode.COLLECT_UIDS) {
+            return collectUids(context, processList, flags);
+
+        } else if (mode == ScanMode.COLLECT_THREADS) {
+            if (processList == null) {
+                return null;
+            }
+
+            /*
+             * The list can contain processes, or the threads from the last scan of this mode.
+             * Threads are read for each process that owns an entity in the list.
+             */
+            SparseBooleanArray owners = new SparseBooleanArray();
+
+            for (ProcEntity<?> entity : processList) {
+                EntityThread thread = EntityThread.cast(entity);
+                owners.put(thread != null ? thread.getThreadGroupId() : entity.getProcessId(), true);
+            }
+
+            flags = (flags & FLAG_SYSCALLS) | FLAG_THREADS;
+            processes = new int[owners.size() * 3];
+
+            for (int i=0, x=0; i < owners.size(); i++) {
+                processes[x++] = owners.keyAt(i);
+                processes[x++] = 0;
+                processes[x++] = 0;
+            }
+
+        } else if (mode == ScanMode.EVALUATE_COLLECTION && processList != null) {
+            flags |= FLAG_EVALUATE;
+            processes = new int[processList.getEntitySize() * 3];
+            int i = 0;
+
+            for (ProcEntity<?> entity : processList) {
+                processes[i++] = entity.getProcessId();
+                processes[i++] = entity.getProcessUid();
+                processes[i++] = entity.getImportance();
+            }
+
+        } else if (oCheckServiceManager) {
+            List<RunningAppProcessInfo> runningProcesses = RunningAppCache.update(context);
+
+            /*
+             * From Android 5.1.1 and onwards, we no longer have access to getRunningAppProcesses().
+             * All we will get is information about our own processes. That is unless we include the
+             * REAL_GET_TASK permission and copy the app to /system/priv-app.
+             *
+             * Since this feature used to help us get information like Importance, we keep it alive
+             * for older Android versions and open the possibility to bypass the security with a small Xposed Hook
+             * for those who enable the attached module.
+             */
+            if (runningProcesses != null && runningProcesses.size() > 1) {
+                processes = new int[runningProcesses.size() * 3];
                 int i = 0;
 
-                for (ProcEntity<?> entity : processList) {
-                    processes[i++] = entity.getProcessId();
-                    processes[i++] = entity.getProcessUid();
-                    processes[i++] = entity.getImportance();
+                for (RunningAppProcessInfo androidProcess : runningProcesses) {
+                    processes[i++] = androidProcess.pid;
+                    processes[i++] = androidProcess.uid;
+                    processes[i++] = androidProcess.importance;
                 }
 
-            } else if (oCheckServiceManager) {
-                ActivityManager manager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
-                List<RunningAppProcessInfo> runningProcesses = manager.getRunningAppProcesses();
+            } else {
+                /*
+                 * Activate the process type sorting in the native scanner
+                 */
+                flags |= FLAG_SORT;
 
                 /*
-                 * From Android 5.1.1 and onwards, we no longer have access to getRunningAppProcesses().
-                 * All we will get is information about our own processes. That is unless we include the
-                 * REAL_GET_TASK permission and copy the app to /system/priv-app.
-                 *
-                 * Since this feature used to help us get information like Importance, we keep it alive
-                 * for older Android versions and open the possibility to bypass the security with a small Xposed Hook
-                 * for those who enable the attached module.
+                 * Do not attempt this again
                  */
-                if (runningProcesses != null && runningProcesses.size() > 1) {
-                    processes = new int[runningProcesses.size() * 3];
-                    int i = 0;
+                oCheckServiceManager = false;
+            }
 
-                    for (RunningAppProcessInfo androidProcess : runningProcesses) {
-                        processes[i++] = androidProcess.pid;
-                        processes[i++] = androidProcess.uid;
-                        processes[i++] = androidProcess.importance;
-                    }
+        } else {
+            flags |= FLAG_SORT;
+        }
 
-                } else {
-                    /*
-                     * Activate the process type sorting in the native scanner
-                     */
-                    flags |= FLAG_SORT;
-
-                    /*
-                     * Do not attempt this again
-                     */
-                    oCheckServiceManager = false;
+        if (mUseDelta && processList != null && processList == mDeltaList && (flags & (FLAG_EVALUATE | FLAG_THREADS)) == 0) {
+            flags |= FLAG_DELTA;
+        }
+
+        /*
+         * Start scanning processes
+         */
+        ScanBuffer records = mScanBuffer;
+        int count = scanBuffer(processes, flags, records);
+
+        if (count > 0 && records.isDelta()) {
+            return applyDelta(context, records, StatSystem.cast(processList));
+
+        } else if (count > 0) {
+            StatSystem systemProcess = new StatSystem(count);
+            systemProcess.updateStat(records.moveToRecord(0), StatSystem.cast(processList));
+
+            if ((flags & FLAG_THREADS) != 0) {
+                for (int i=records.getFirstProcess(); i < count; i++) {
+                    records.moveToRecord(i);
+
+                    ProcEntity<?> oldEntity = processList.findEntity(records.getProcessId());
+                    EntityThread newEntity = new EntityThread();
+
+                    newEntity.updateStat(records, EntityThread.cast(oldEntity));
+                    systemProcess.addEntity(newEntity);
+                }
+
+                return systemProcess;
+            }
+
+            addEntities(records, processList, systemProcess, getProcessLockInfo(context));
+
+            if (mUseDelta && (flags & FLAG_EVALUATE) == 0) {
+                mDeltaList = systemProcess;
+            }
+
+            return systemProcess;
+        }
+
+        return null;
+    }
+
+    /*
+     * Read the CPU time of each uid, and then scan the processes of those above the uid threshold
+     * or holding a wakelock. This replaces reading the stat file of each process with a few files per uid.
+     * The second scan continues the CPU sample of the first, so the processes are measured over the same interval as the uids.
+     * Returns NULL if the device does not provide the time of each uid.
+     */
+    protected ProcList<?> collectUids(Context context, ProcList<?> processList, int flags) {
+        ScanBuffer records = mScanBuffer;
+
+        flags = (flags & (FLAG_SYSCALLS | FLAG_TASKSTATS | FLAG_EVENTS)) | FLAG_UIDS;
+        mDeltaList = null;
+
+        if (scanBuffer(null, flags, records) <= 0 || records.getUidCount() == 0) {
+            return null;
+        }
+
+        StatSystem systemProcess = new StatSystem();
+        systemProcess.updateStat(records.moveToRecord(0), StatSystem.cast(processList));
+
+        Map<String, ProcessLockInfo> processLockInfo = getProcessLockInfo(context);
+        SparseBooleanArray uids = new SparseBooleanArray();
+
+        for (int i=0; i < systemProcess.getUidSize(); i++) {
+            int uid = systemProcess.getUid(i);
+            double usage = mUidThresholdCores ? systemProcess.getUidCoreUsage(uid) : systemProcess.getUidUsage(uid);
+
+            if (usage > mUidThreshold) {
+                uids.put(uid, true);
+            }
+        }
+
+        if (processLockInfo != null) {
+            for (ProcessLockInfo lockInfo : processLockInfo.values()) {
+                uids.put(lockInfo.getUid(), true);
+            }
+        }
+
+        if (uids.size() > 0) {
+            int[] processes = new int[uids.size() * 3];
+
+            for (int i=0, x=0; i < uids.size(); i++) {
+                processes[x++] = uids.keyAt(i);
+                processes[x++] = 0;
+                processes[x++] = 0;
+            }
+
+            if (scanBuffer(processes, flags, records) > 0) {
+                addEntities(records, processList, systemProcess, processLockInfo);
+            }
+        }
+
+        return systemProcess;
+    }
+
+    protected int scanBuffer(int[] processes, int flags, ScanBuffer records) {
+        int count = 0;
+
+        try {
+            do {
+                count = scanRecords(processes, flags, mWorkerCount, records);
+
+                if (count < 0) {
+                    records.ensureCapacity(-count);
                 }
 
+            } while (count < 0);
+
+            if (Constants.ENABLE_DEBUG) {
+                Log.d("Java_GuardianScanner", "Received " + count + " processes");
+            }
+
+        } catch (Throwable e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+
+        return count;
+    }
+
+    /*
+     * Add an entity for each process record, continuing from those in the list of the last scan
+     */
+    protected void addEntities(ScanBuffer records, ProcList<?> processList, StatSystem systemProcess, Map<String, ProcessLockInfo> processLockInfo) {
+        for (int i=records.getFirstProcess(); i < records.getProcessEnd(); i++) {
+            records.moveToRecord(i);
+
+            int type = records.getType();
+            int uid = records.getProcessUid();
+            int pid = records.getProcessId();
+            String processName = records.getProcessName();
+
+            ProcEntity<?> oldEntity = processList != null ? processList.findEntity(pid) : null;
+
+            if (type > 0) {
+                EntityAndroid lastEntity = EntityAndroid.cast(oldEntity);
+                EntityAndroid newEntity = new EntityAndroid();
+                newEntity.updateStat(records, lastEntity, findLockInfo(processLockInfo, uid, processName));
+                systemProcess.addEntity(newEntity);
+
             } else {
-                flags |= FLAG_SORT;
+                EntityLinux lastEntity = EntityLinux.cast(oldEntity);
+                EntityLinux newEntity = new EntityLinux();
+                newEntity.updateStat(records, lastEntity);
+                systemProcess.addEntity(newEntity);
+            }
+        }
+
+        addBursts(records, systemProcess, processLockInfo);
+    }
+
+    /*
+     * Add an entity for each process that started and exited since the last full scan.
+     * These are never part of the last list, and all of their time was used since the last scan.
+     */
+    protected void addBursts(ScanBuffer records, StatSystem systemProcess, Map<String, ProcessLockInfo> processLockInfo) {
+        for (int i=records.getProcessEnd(); i < records.getBurstEnd(); i++) {
+            records.moveToRecord(i);
+
+            ProcEntity<?> newEntity;
+
+            if (records.getType() > 0) {
+                EntityAndroid entity = new EntityAndroid();
+                entity.updateStat(records, null, findLockInfo(processLockInfo, records.getProcessUid(), records.getProcessName()));
+                newEntity = entity;
+
+            } else {
+                EntityLinux entity = new EntityLinux();
+                entity.updateStat(records, null);
+                newEntity = entity;
+            }
+
+            newEntity.updateBurst(systemProcess);
+            systemProcess.addEntity(newEntity);
+        }
+    }
+
+    /*
+     * Update the list from the last full scan with a delta scan.
+     * Only the processes in the scan has changed, the rest just gets the new CPU time
+     * so that their usage drops to 0.
+     */
+    protected ProcList<?> applyDelta(Context context, ScanBuffer records, StatSystem systemProcess) {
+        Map<String, ProcessLockInfo> processLockInfo = getProcessLockInfo(context);
+        SparseBooleanArray changed = new SparseBooleanArray(records.getProcessEnd() - records.getFirstProcess());
+        boolean removed = false;
+
+        systemProcess.updateStat(records.moveToRecord(0), null);
+
+        for (int i=records.getBurstEnd(); i < records.getRecordCount(); i++) {
+            ProcEntity<?> oldEntity = systemProcess.findEntity(records.moveToRecord(i).getProcessId());
+
+            if (oldEntity != null) {
+                systemProcess.removeEntity(oldEntity);
+                removed = true;
             }
+        }
+
+        for (int i=records.getFirstProcess(); i < records.getProcessEnd(); i++) {
+            records.moveToRecord(i);
+
+            int type = records.getType();
+            int uid = records.getProcessUid();
+            int pid = records.getProcessId();
+            String processName = records.getProcessName();
+
+            ProcEntity<?> oldEntity = systemProcess.findEntity(pid);
+
+            changed.put(pid, true);
 
             /*
-             * Start scanning processes
+             * A process can change between Android and Linux if it is not yet specialized,
+             * in which case it get's a new entity like it would during a full scan
              */
-            List<String[]> statCollection = null;
+            if (type > 0) {
+                EntityAndroid entity = EntityAndroid.cast(oldEntity);
 
-            try {
-                statCollection = jniScan(processes, flags);
+                if (entity == null) {
+                    removed |= systemProcess.removeEntity(oldEntity) != null;
+                    entity = new EntityAndroid();
+                    entity.updateStat(records, null, findLockInfo(processLockInfo, uid, processName));
+                    systemProcess.addEntity(entity);
 
-                if (Constants.ENABLE_DEBUG) {
-                    Log.d("Java_GuardianScanner", "Received " + statCollection.size() + " processes");
+                } else {
+                    entity.updateStat(records, null, findLockInfo(processLockInfo, uid, processName));
                 }
 
-            } catch (Throwable e) {
-                throw new RuntimeException(e.getMessage(), e);
+            } else {
+                EntityLinux entity = EntityLinux.cast(oldEntity);
+
+                if (entity == null) {
+                    removed |= systemProcess.removeEntity(oldEntity) != null;
+                    entity = new EntityLinux();
+                    entity.updateStat(records, null);
+                    systemProcess.addEntity(entity);
+
+                } else {
+                    entity.updateStat(records, null);
+                }
             }
+        }
+
+        for (int i=records.getProcessEnd(); i < records.getBurstEnd(); i++) {
+            changed.put(records.moveToRecord(i).getProcessId(), true);
+        }
+
+        addBursts(records, systemProcess, processLockInfo);
+
+        records.moveToRecord(0);
 
-            if (statCollection.size() > 0) {
-                StatSystem systemProcess = new StatSystem(statCollection.size());
-                systemProcess.updateStat(statCollection.remove(0), StatSystem.cast(processList));
+        for (ProcEntity<?> entity : systemProcess) {
+            if (!changed.get(entity.getProcessId())) {
+                entity.updateUnchanged(records);
 
-                List<ProcessLockInfo> processLockInfo = null;
-                WakeLockManager lockManager = ((Controller) context.getApplicationContext()).getWakeLockManager();
-                if (lockManager != null) {
-                    processLockInfo = lockManager.getProcessLockInfo();
+                /*
+                 * Wakelocks are not part of the scan, so these can change for any process
+                 */
+                EntityAndroid androidEntity = EntityAndroid.cast(entity);
+
+                if (androidEntity != null) {
+                    androidEntity.setProcessLockInfo(findLockInfo(processLockInfo, androidEntity.getProcessUid(), androidEntity.getProcessName()));
                 }
+            }
+        }
+
+        /*
+         * Removing entities moves the last ones into their place, so the list is sorted again
+         */
+        if (removed) {
+            systemProcess.sortEntities();
+        }
 
-                for (String[] stats : statCollection) {
-                    int type = Integer.valueOf(stats[0]);
-                    int uid = Integer.valueOf(stats[1]);
-                    int pid = Integer.valueOf(stats[2]);
-                    String processName = stats[3];
-
-                    ProcEntity<?> oldEntity = processList != null ? processList.findEntity(pid) : null;
-
-                    if (type > 0) {
-                        EntityAndroid newEntity = new EntityAndroid();
-                        ProcessLockInfo newLockInfo = null;
-
-                        if (processLockInfo != null) {
-                            for (ProcessLockInfo lockInfo : processLockInfo) {
-                                /*
-                                 * It is much faster to compare two int values than long string values.
-                                 * But one uid might have multiple processes, so we need to check this to, but no need if the uid does not match.
-                                 */
-                                if (lockInfo.getUid() == uid && !lockInfo.isBroken() && lockInfo.getProcessName().equals(processName)) {
-                                    newLockInfo = lockInfo; break;
-                                }
-                            }
-                        }
-
-                        newEntity.updateStat(stats, EntityAndroid.cast(oldEntity), newLockInfo);
-                        systemProcess.addEntity(newEntity);
-
-                    } else {
-                        EntityLinux newEntity = new EntityLinux();
-                        newEntity.updateStat(stats, EntityLinux.cast(oldEntity));
-                        systemProcess.addEntity(newEntity);
-                    }
+        return systemProcess;
+    }
+
+    protected Map<String, ProcessLockInfo> getProcessLockInfo(Context context) {
+        WakeLockManager lockManager = ((Controller) context.getApplicationContext()).getWakeLockManager();
+
+        return lockManager != null ? indexLockInfo(lockManager.getProcessLockInfo()) : null;
+    }
+
+    /*
+     * The wakelock service keeps one entry for each process name, so these are indexed by name
+     * and the uid is only compared once a name has matched. The index is reused between scans of this instance.
+     * Returns NULL if no process is holding a wakelock.
+     */
+    protected Map<String, ProcessLockInfo> indexLockInfo(List<ProcessLockInfo> processLockInfo) {
+        mLockIndex.clear();
+
+        if (processLockInfo != null) {
+            for (ProcessLockInfo lockInfo : processLockInfo) {
+                if (!lockInfo.isBroken()) {
+                    mLockIndex.put(lockInfo.getProcessName(), lockInfo);
                 }
+            }
+        }
 
-                return systemProcess;
+        return mLockIndex.size() > 0 ? mLockIndex : null;
+    }
+
+    protected ProcessLockInfo findLockInfo(Map<String, ProcessLockInfo> processLockInfo, int uid, String processName) {
+        if (processLockInfo != null) {
+            ProcessLockInfo lockInfo = processLockInfo.get(processName);
+
+            if (lockInfo != null && lockInfo.getUid() == uid) {
+                return lockInfo;
             }
         }
 
@@ -0,0 +1,76 @@
+/*
+ * This file is part of the Guardian Project: https://github.com/spazedog/guardian
+ *
+ * Copyright (c) 2015 Daniel Bergløv
+ *
+ * Guardian is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Guardian is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Guardian. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.guardian.scanner;
+
+
+import android.app.ActivityManager;
+import android.app.ActivityManager.RunningAppProcessInfo;
+import android.content.Context;
+import android.util.SparseArray;
+
+import java.util.List;
+
+/*
+ * Android's list of running processes, shared by ProcessScanner and each AndroidDataLoader.
+ * Getting it is a binder call that returns every process, so it is fetched at most once for each scan.
+ * Scans that needs it fetches a new one, others only mark the current one as old,
+ * in which case it is fetched again the next time a data loader needs it.
+ */
+public final class RunningAppCache {
+
+    private static SparseArray<RunningAppProcessInfo> oProcesses = new SparseArray<RunningAppProcessInfo>();
+    private static boolean oExpired = true;
+
+    private RunningAppCache() {}
+
+    /*
+     * Fetch a new list for a scan. Returns NULL if Android did not provide one.
+     */
+    public static synchronized List<RunningAppProcessInfo> update(Context context) {
+        ActivityManager manager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        List<RunningAppProcessInfo> runningProcesses = manager.getRunningAppProcesses();
+
+        oProcesses = new SparseArray<RunningAppProcessInfo>(runningProcesses != null ? runningProcesses.size() : 0);
+        oExpired = false;
+
+        if (runningProcesses != null) {
+            for (RunningAppProcessInfo appInfo : runningProcesses) {
+                oProcesses.put(appInfo.pid, appInfo);
+            }
+        }
+
+        return runningProcesses;
+    }
+
+    /*
+     * Mark the current list as old, used by scans that does not need a new one
+     */
+    public static synchronized void expire() {
+        oExpired = true;
+    }
+
+    public static synchronized RunningAppProcessInfo find(Context context, int pid) {
+        if (oExpired) {
+            update(context);
+        }
+
+        return oProcesses.get(pid);
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * This file is part of the Guardian Project: https://github.com/spazedog/guardian
+ *
+ * Copyright (c) 2015 Daniel Bergløv
+ *
+ * Guardian is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Guardian is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Guardian. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.guardian.scanner;
+
+
+import android.os.Parcel;
+import android.os.Process;
+import android.util.Log;
+
+import com.spazedog.guardian.Constants;
+import com.spazedog.guardian.backend.xposed.WakeLockService.ProcessLockInfo;
+import com.spazedog.guardian.backend.xposed.WakeLockService.WakeLockInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Compares a full scan (ScanMode.COLLECT_PROCESSES) made by libprocessScanner.so
+ * with the same scan made by JavaScanner. The result is written to the log.
+ *
+ * Both are warmed up first, so that the JIT has compiled the Java parser
+ * and the stat files of both are kept open, as they would be during monitoring.
+ *
+ * The library is then compared with itself, using the file streams and the syscall backend (FLAG_SYSCALLS).
+ *
+ * The io_uring reader of the syscall backend is compared with reading one stat file at a time (FLAG_SEQUENTIAL),
+ * for a growing number of processes.
+ *
+ * It also compares matching wakelocks to processes by searching the list from the wakelock service,
+ * with the index that ProcessScanner builds from it.
+ *
+ * Last it measures the memory used by the process lists built from the scan,
+ * and the time it takes to build, sort and parcel them.
+ */
+public class ScanBenchmark extends Thread {
+
+    private static final int WARMUP_ROUNDS = 50;
+    private static final int ROUNDS = 200;
+
+    private static final int LIST_COUNT = 20;
+
+    private static final int[] URING_PROCESSES = new int[] {125, 250, 500, 1000, 2000, 3000};
+
+    private static final int LOCK_PROCESSES = 500;
+    private static final int LOCK_HOLDERS = 200;
+
+    @Override
+    public void run() {
+        ScanBuffer buffer = new ScanBuffer();
+        JavaScanner javaScanner = new JavaScanner();
+        ProcessScanner libraryScanner = new ProcessScanner();
+        long javaTime = 0l;
+        long libraryTime = 0l;
+
+        for (int i=0; i < WARMUP_ROUNDS; i++) {
+            javaScanner.scan(null, ProcessScanner.FLAG_ALL, buffer);
+        }
+
+        javaTime = System.nanoTime();
+
+        for (int i=0; i < ROUNDS; i++) {
+            javaScanner.scan(null, ProcessScanner.FLAG_ALL, buffer);
+        }
+
+        javaTime = (System.nanoTime() - javaTime) / ROUNDS;
+
+        if (ProcessScanner.hasLibrary()) {
+            for (int i=0; i < WARMUP_ROUNDS; i++) {
+                scanLibrary(libraryScanner, null, ProcessScanner.FLAG_ALL, buffer);
+            }
+
+            libraryTime = System.nanoTime();
+
+            for (int i=0; i < ROUNDS; i++) {
+                scanLibrary(libraryScanner, null, ProcessScanner.FLAG_ALL, buffer);
+            }
+
+            libraryTime = (System.nanoTime() - libraryTime) / ROUNDS;
+        }
+
+        javaScanner.close();
+        libraryScanner.release();
+
+        Log.d("Java_GuardianScanner", "Scan benchmark: " + buffer.getRecordCount() + " records"
+                + ", Java = " + (javaTime / 1000) + "us"
+                + ", Library = " + (libraryTime > 0 ? (libraryTime / 1000) + "us" : "Not loaded")
+                + (libraryTime > 0 ? ", Library is " + Math.round((100d * (javaTime - libraryTime)) / javaTime) + "% faster" : ""));
+
+        benchmarkBackend(buffer);
+        benchmarkLockInfo();
+        benchmarkLists(buffer);
+        benchmarkUring(buffer);
+    }
+
+    private void benchmarkBackend(ScanBuffer buffer) {
+        if (!ProcessScanner.hasLibrary()) {
+            return;
+        }
+
+        long[] streamTime = timeLibrary(null, ProcessScanner.FLAG_ALL, buffer);
+        long[] syscallTime = timeLibrary(null, ProcessScanner.FLAG_ALL | ProcessScanner.FLAG_SYSCALLS | ProcessScanner.FLAG_SEQUENTIAL, buffer);
+
+        Log.d("Java_GuardianScanner", "Backend benchmark: " + buffer.getRecordCount() + " records"
+                + ", Streams = " + (streamTime[0] / 1000) + "us (CPU " + (streamTime[1] / 1000) + "us)"
+                + ", Syscalls = " + (syscallTime[0] / 1000) + "us (CPU " + (syscallTime[1] / 1000) + "us)"
+                + ", Syscalls is " + Math.round((100d * (streamTime[0] - syscallTime[0])) / streamTime[0]) + "% faster");
+    }
+
+    /*
+     * The processes are listed (FLAG_EVALUATE), so that /proc is not walked and only the reading grows with the count.
+     * The largest counts are only used on devices with that many processes.
+     */
+    private void benchmarkUring(ScanBuffer buffer) {
+        if (!ProcessScanner.hasLibrary()) {
+            return;
+        }
+
+        int flags = ProcessScanner.FLAG_EVALUATE | ProcessScanner.FLAG_SYSCALLS;
+        int size = buffer.getProcessEnd() - buffer.getFirstProcess();
+        int[] processes = new int[size * 3];
+
+        for (int i=buffer.getFirstProcess(), x=0; i < buffer.getProcessEnd(); i++) {
+            buffer.moveToRecord(i);
+
+            processes[x++] = buffer.getProcessId();
+            processes[x++] = buffer.getProcessUid();
+            processes[x++] = buffer.getType();
+        }
+
+        for (int i=0; i <= URING_PROCESSES.length; i++) {
+            int count = i < URING_PROCESSES.length ? URING_PROCESSES[i] : size;
+
+            if (i < URING_PROCESSES.length && count >= size) {
+                continue;
+            }
+
+            int[] listed = new int[count * 3];
+            System.arraycopy(processes, 0, listed, 0, listed.length);
+
+            long[] sequentialTime = timeLibrary(listed, flags | ProcessScanner.FLAG_SEQUENTIAL, buffer);
+            long[] uringTime = timeLibrary(listed, flags, buffer);
+
+            Log.d("Java_GuardianScanner", "Uring benchmark: " + count + " processes"
+                    + ", Sequential = " + (sequentialTime[0] / 1000) + "us (CPU " + (sequentialTime[1] / 1000) + "us)"
+                    + ", Uring = " + (uringTime[0] / 1000) + "us (CPU " + (uringTime[1] / 1000) + "us)"
+                    + ", Uring is " + Math.round((100d * (sequentialTime[0] - uringTime[0])) / sequentialTime[0]) + "% faster");
+        }
+    }
+
+    /*
+     * The wall and CPU time of one scan in nanoseconds. Each is made by a new library handle, so that
+     * descriptors and names are not shared between the compared scans. The CPU time is that of the whole process,
+     * as the kernel might do some of the reading in other threads.
+     */
+    private long[] timeLibrary(int[] processes, int flags, ScanBuffer buffer) {
+        ProcessScanner scanner = new ProcessScanner();
+        long wallTime;
+        long cpuTime;
+
+        for (int i=0; i < WARMUP_ROUNDS; i++) {
+            scanLibrary(scanner, processes, flags, buffer);
+        }
+
+        wallTime = System.nanoTime();
+        cpuTime = Process.getElapsedCpuTime();
+
+        for (int i=0; i < ROUNDS; i++) {
+            scanLibrary(scanner, processes, flags, buffer);
+        }
+
+        cpuTime = ((Process.getElapsedCpuTime() - cpuTime) * 1000000) / ROUNDS;
+        wallTime = (System.nanoTime() - wallTime) / ROUNDS;
+
+        scanner.release();
+
+        return new long[] {wallTime, cpuTime};
+    }
+
+    private void benchmarkLists(ScanBuffer buffer) {
+        ProcessScanner scanner = new ProcessScanner();
+        StatSystem[] lists = new StatSystem[LIST_COUNT];
+        Runtime runtime = Runtime.getRuntime();
+        long buildTime = 0l;
+        long sortTime = 0l;
+        long parcelTime = 0l;
+        long memory;
+
+        for (int i=0; i < WARMUP_ROUNDS; i++) {
+            buildList(scanner, buffer, null).sortEntities();
+        }
+
+        runtime.gc();
+        memory = runtime.totalMemory() - runtime.freeMemory();
+
+        /*
+         * Each list continues from the last one, like they would during monitoring
+         */
+        for (int i=0; i < LIST_COUNT; i++) {
+            long time = System.nanoTime();
+            lists[i] = buildList(scanner, buffer, i > 0 ? lists[i-1] : null);
+            buildTime += System.nanoTime() - time;
+        }
+
+        runtime.gc();
+        memory = (runtime.totalMemory() - runtime.freeMemory()) - memory;
+
+        for (int i=0; i < LIST_COUNT; i++) {
+            long time = System.nanoTime();
+            lists[i].sortEntities();
+            sortTime += System.nanoTime() - time;
+
+            Parcel parcel = Parcel.obtain();
+
+            time = System.nanoTime();
+            lists[i].writeToParcel(parcel, 0);
+            parcelTime += System.nanoTime() - time;
+
+            parcel.recycle();
+        }
+
+        scanner.release();
+
+        Log.d("Java_GuardianScanner", "List benchmark: " + lists[0].getEntitySize() + " processes"
+                + ", Memory = " + (memory / LIST_COUNT / 1024) + "KB"
+                + ", Build = " + (buildTime / LIST_COUNT / 1000) + "us"
+                + ", Sort = " + (sortTime / LIST_COUNT / 1000) + "us"
+                + ", Parcel = " + (parcelTime / LIST_COUNT / 1000) + "us");
+    }
+
+    private StatSystem buildList(ProcessScanner scanner, ScanBuffer buffer, StatSystem lastList) {
+        StatSystem systemProcess = new StatSystem(buffer.getRecordCount());
+        systemProcess.updateStat(buffer.moveToRecord(0), lastList);
+        scanner.addEntities(buffer, lastList, systemProcess, null);
+
+        return systemProcess;
+    }
+
+    private void benchmarkLockInfo() {
+        ProcessScanner scanner = new ProcessScanner();
+        List<ProcessLockInfo> processLockInfo = createLockInfo();
+        String[] processNames = new String[LOCK_PROCESSES];
+        int[] processUids = new int[LOCK_PROCESSES];
+        long listTime = 0l;
+        long indexTime = 0l;
+        int matches = 0;
+
+        /*
+         * Names are built like the ones read from the records, so that they are not the same instances
+         */
+        for (int i=0; i < LOCK_PROCESSES; i++) {
+            processNames[i] = new StringBuilder("com.example.process").append(i).toString();
+            processUids[i] = 10000 + i;
+        }
+
+        for (int x=0; x < WARMUP_ROUNDS + ROUNDS; x++) {
+            long time = System.nanoTime();
+
+            for (int i=0; i < LOCK_PROCESSES; i++) {
+                findLockInfo(processLockInfo, processUids[i], processNames[i]);
+            }
+
+            if (x >= WARMUP_ROUNDS) {
+                listTime += System.nanoTime() - time;
+            }
+
+            time = System.nanoTime();
+            matches = 0;
+
+            Map<String, ProcessLockInfo> lockIndex = scanner.indexLockInfo(processLockInfo);
+
+            for (int i=0; i < LOCK_PROCESSES; i++) {
+                if (scanner.findLockInfo(lockIndex, processUids[i], processNames[i]) != null) {
+                    matches++;
+                }
+            }
+
+            if (x >= WARMUP_ROUNDS) {
+                indexTime += System.nanoTime() - time;
+            }
+        }
+
+        scanner.release();
+
+        Log.d("Java_GuardianScanner", "Wakelock benchmark: " + LOCK_PROCESSES + " processes, " + LOCK_HOLDERS + " lock holders, " + matches + " matches"
+                + ", List = " + (listTime / ROUNDS / 1000) + "us"
+                + ", Index = " + (indexTime / ROUNDS / 1000) + "us");
+    }
+
+    /*
+     * Lock holders are every other process, plus some that has exited
+     */
+    private List<ProcessLockInfo> createLockInfo() {
+        List<ProcessLockInfo> processLockInfo = new ArrayList<ProcessLockInfo>(LOCK_HOLDERS);
+        Parcel parcel = Parcel.obtain();
+
+        for (int i=0; i < LOCK_HOLDERS; i++) {
+            int process = i * 2 < LOCK_PROCESSES ? i * 2 : LOCK_PROCESSES + i;
+
+            parcel.writeInt(Constants.SERVICE_PARCEL_ID);
+            parcel.writeInt(10000 + process);
+            parcel.writeString("com.example.process" + process);
+            parcel.writeLong(0l);
+            parcel.writeLong(0l);
+            parcel.writeLong(0l);
+            parcel.writeTypedList(new ArrayList<WakeLockInfo>());
+        }
+
+        parcel.setDataPosition(0);
+
+        for (int i=0; i < LOCK_HOLDERS; i++) {
+            processLockInfo.add(ProcessLockInfo.CREATOR.createFromParcel(parcel));
+        }
+
+        parcel.recycle();
+
+        return processLockInfo;
+    }
+
+    /*
+     * The search that ProcessScanner used before it had an index
+     */
+    private ProcessLockInfo findLockInfo(List<ProcessLockInfo> processLockInfo, int uid, String processName) {
+        for (ProcessLockInfo lockInfo : processLockInfo) {
+            if (lockInfo.getUid() == uid && !lockInfo.isBroken() && lockInfo.getProcessName().equals(processName)) {
+                return lockInfo;
+            }
+        }
+
+        return null;
+    }
+
+    private void scanLibrary(ProcessScanner scanner, int[] processes, int flags, ScanBuffer buffer) {
+        int count;
+
+        while ((count = scanner.scanLibrary(processes, flags, 1, buffer)) < 0) {
+            buffer.ensureCapacity(-count);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * This file is part of the Guardian Project: https://github.com/spazedog/guardian
+ *
+ * Copyright (c) 2015 Daniel Bergløv
+ *
+ * Guardian is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Guardian is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Guardian. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.guardian.scanner;
+
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/*
+ * A direct buffer that libprocessScanner.so writes each scan into.
+ * It works as a cursor, pointing at one record at a time, so that
+ * reading a scan result does not create any objects.
+ */
+public class ScanBuffer {
+
+    /*
+     * Byte offsets of each value within a record.
+     * The first record contains the CPU information, followed by one record per online core.
+     * The CPU record uses the pid value for the number of core records,
+     * and each core record uses it for the core number. The rest are processes.
+     * A delta or evaluation scan ends with one record per exited process, counted by the type value of the CPU record.
+     * A uid scan has one record per uid between the core records and the processes, counted by the uid value of the CPU record.
+     * A full scan with FLAG_EVENTS can have processes that has already exited after the rest, counted by the start time value of the CPU record.
+     * These are also defined as ProcRecord in ProcessScanner.cpp
+     */
+    public static final int RECORD_TYPE = 0;
+    public static final int RECORD_UID = 8;
+    public static final int RECORD_PID = 16;
+    public static final int RECORD_UTIME = 24;
+    public static final int RECORD_STIME = 32;
+    public static final int RECORD_CUTIME = 40;
+    public static final int RECORD_CSTIME = 48;
+    public static final int RECORD_STARTTIME = 56;
+    public static final int RECORD_IDLE = 64;
+    public static final int RECORD_UPTIME = 72;
+    public static final int RECORD_CPU_DELAY = 80;
+    public static final int RECORD_BLKIO_DELAY = 88;
+    public static final int RECORD_SWAPIN_DELAY = 96;
+    public static final int RECORD_NAME_OFFSET = 104;
+    public static final int RECORD_NAME_LENGTH = 108;
+    public static final int RECORD_SIZE = 112;
+
+    private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+
+    private ByteBuffer mBuffer;
+    private String[] mNames = new String[0];
+    private byte[] mNameBytes = new byte[64];
+    private int mRecordCount = 0;
+    private int mPosition = 0;
+    private int mOffset = 0;
+    private boolean mDelta = false;
+
+    public ScanBuffer() {
+        this(256);
+    }
+
+    public ScanBuffer(int recordCapacity) {
+        ensureCapacity(recordCapacity * (RECORD_SIZE + 32));
+    }
+
+    /*
+     * Grow the buffer, if needed, so that it can hold a scan of 'size' bytes.
+     * Some additional room is added to avoid having to re-scan each time a new process appears.
+     */
+    void ensureCapacity(int size) {
+        if (mBuffer == null || mBuffer.capacity() < size) {
+            mBuffer = ByteBuffer.allocateDirect(size + (size / 4)).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    void setRecordCount(int count) {
+        if (mNames.length < count) {
+            mNames = new String[count + (count / 4)];
+        }
+
+        mRecordCount = count;
+        mPosition = 0;
+        mOffset = 0;
+    }
+
+    /*
+     * Returns the name written to the current record, or NULL
+     * if it has not changed since it was last received.
+     */
+    String readProcessName() {
+        int length = mBuffer.getInt(mOffset + RECORD_NAME_LENGTH);
+
+        if (length >= 0) {
+            if (mNameBytes.length < length) {
+                mNameBytes = new byte[length * 2];
+            }
+
+            mBuffer.position(mBuffer.getInt(mOffset + RECORD_NAME_OFFSET));
+            mBuffer.get(mNameBytes, 0, length);
+            mBuffer.position(0);
+
+            return new String(mNameBytes, 0, length, NAME_CHARSET);
+        }
+
+        return null;
+    }
+
+    void setDelta(boolean delta) {
+        mDelta = delta;
+    }
+
+    /*
+     * A delta scan (FLAG_DELTA) only contains the processes that has changed since the last full scan
+     * of the same ProcessScanner, followed by the processes from it that has exited
+     */
+    public boolean isDelta() {
+        return mDelta;
+    }
+
+    void setProcessName(String name) {
+        mNames[mPosition] = name;
+    }
+
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    public ScanBuffer moveToRecord(int position) {
+        mPosition = position;
+        mOffset = position * RECORD_SIZE;
+
+        return this;
+    }
+
+    public int getPosition() {
+        return mPosition;
+    }
+
+    /*
+     * The number of online cores, no matter which record is current
+     */
+    public int getCoreCount() {
+        return mRecordCount > 0 ? (int) mBuffer.getLong(RECORD_PID) : 0;
+    }
+
+    /*
+     * The number of uid records of a uid scan (FLAG_UIDS), which only has the uid and it's CPU time.
+     * They follow the core records sorted by uid.
+     */
+    public int getUidCount() {
+        return mRecordCount > 0 ? (int) mBuffer.getLong(RECORD_UID) : 0;
+    }
+
+    public int getFirstUid() {
+        return mRecordCount > 0 ? getCoreCount() + 1 : 0;
+    }
+
+    /*
+     * Position of the first process record, which follows the CPU, core and uid records
+     */
+    public int getFirstProcess() {
+        return mRecordCount > 0 ? getCoreCount() + getUidCount() + 1 : 0;
+    }
+
+    /*
+     * The number of exited records at the end of a delta or evaluation scan, which only has the pid
+     */
+    public int getExitedCount() {
+        return mRecordCount > 0 ? (int) mBuffer.getLong(RECORD_TYPE) : 0;
+    }
+
+    /*
+     * The number of processes that started and exited since the last full scan (FLAG_EVENTS).
+     * They follow the process records, always with a name, and are gone by the next scan.
+     */
+    public int getBurstCount() {
+        return mRecordCount > 0 ? (int) mBuffer.getLong(RECORD_STARTTIME) : 0;
+    }
+
+    /*
+     * Position after the last process record
+     */
+    public int getProcessEnd() {
+        return mRecordCount - getExitedCount() - getBurstCount();
+    }
+
+    /*
+     * Position after the last burst record
+     */
+    public int getBurstEnd() {
+        return mRecordCount - getExitedCount();
+    }
+
+    public int getCoreId() {
+        return (int) mBuffer.getLong(mOffset + RECORD_PID);
+    }
+
+    public int getType() {
+        return (int) mBuffer.getLong(mOffset + RECORD_TYPE);
+    }
+
+    public int getProcessUid() {
+        return (int) mBuffer.getLong(mOffset + RECORD_UID);
+    }
+
+    public int getProcessId() {
+        return (int) mBuffer.getLong(mOffset + RECORD_PID);
+    }
+
+    public String getProcessName() {
+        return mNames[mPosition];
+    }
+
+    public long getUTime() {
+        return mBuffer.getLong(mOffset + RECORD_UTIME);
+    }
+
+    public long getSTime() {
+        return mBuffer.getLong(mOffset + RECORD_STIME);
+    }
+
+    public long getCUTime() {
+        return mBuffer.getLong(mOffset + RECORD_CUTIME);
+    }
+
+    public long getCSTime() {
+        return mBuffer.getLong(mOffset + RECORD_CSTIME);
+    }
+
+    public long getStartTime() {
+        return mBuffer.getLong(mOffset + RECORD_STARTTIME);
+    }
+
+    public long getIdle() {
+        return mBuffer.getLong(mOffset + RECORD_IDLE);
+    }
+
+    public long getUptime() {
+        return mBuffer.getLong(mOffset + RECORD_UPTIME);
+    }
+
+    /*
+     * Delay accounting in nanoseconds, which is only
+     * collected by the taskstats backend. Otherwise these are 0.
+     */
+    public long getCpuDelay() {
+        return mBuffer.getLong(mOffset + RECORD_CPU_DELAY);
+    }
+
+    public long getBlkioDelay() {
+        return mBuffer.getLong(mOffset + RECORD_BLKIO_DELAY);
+    }
+
+    public long getSwapinDelay() {
+        return mBuffer.getLong(mOffset + RECORD_SWAPIN_DELAY);
+    }
+}
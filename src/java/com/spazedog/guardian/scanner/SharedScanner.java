@@ -0,0 +1,371 @@
+/*
+ * This file is part of the Guardian Project: https://github.com/spazedog/guardian
+ *
+ * Copyright (c) 2015 Daniel Bergløv
+ *
+ * Guardian is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Guardian is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Guardian. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.guardian.scanner;
+
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import com.spazedog.guardian.scanner.ProcessScanner.ScanMode;
+import com.spazedog.guardian.scanner.containers.ProcList;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Runs scans in the background for anyone in the application, where requests for the same mode
+ * shares a single scan. A request is given the result of the last scan if it is not older than the caller accepts,
+ * or joins the scan that is already running for the mode. Otherwise a new scan is started.
+ *
+ * Listeners can also subscribe to a mode with their own interval. Each mode is then sampled
+ * at the shortest interval of it's subscribers, and each subscriber only receives the results that matches it's own interval.
+ *
+ * Results are shared between all callers of a mode, so they are sorted before being handed out
+ * and must not be changed. This is also why the scanner does not use delta scans or recycling.
+ * Only modes that does not depend on a list from the caller can be requested.
+ */
+public class SharedScanner {
+
+    public static interface IScanListener {
+        public void onScanResult(ScanMode mode, ProcList<?> processList);
+    }
+
+    /*
+     * The first result of a mode has nothing to measure the usage against,
+     * so subscribers gets a second one after this many milliseconds
+     */
+    protected static final long PRIME_DELAY = 1000;
+
+    protected static class ScanState {
+        ProcList<?> mResult;
+        long mResultTime;
+        boolean mPrimed;
+        FutureTask<ProcList<?>> mPending;
+        List<IScanListener> mListeners = new ArrayList<IScanListener>();
+        List<Subscriber> mSubscribers = new ArrayList<Subscriber>();
+        long mSampleInterval;
+        ScheduledFuture<?> mSampler;
+    }
+
+    protected static class Subscriber {
+        IScanListener mListener;
+        long mInterval;
+        ProcList<?> mLastResult;
+        long mLastTime;
+        boolean mPrimed;
+    }
+
+    protected final Context mContext;
+    protected final ProcessScanner mProcessScanner = new ProcessScanner();
+    protected final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    protected final Map<ScanMode, ScanState> mStates = new EnumMap<ScanMode, ScanState>(ScanMode.class);
+
+    public SharedScanner(Context context) {
+        mContext = context.getApplicationContext();
+
+        /*
+         * Requests are mostly made by someone waiting for the result
+         */
+        mProcessScanner.setWorkerCount(ProcessScanner.MAX_WORKERS);
+    }
+
+    /*
+     * Request a result of 'mode' that is no older than 'maxAge' milliseconds.
+     * The listener can be NULL, otherwise it is invoked with the result from the scanner thread,
+     * or from the calling thread if an existing result is used.
+     */
+    public Future<ProcList<?>> request(ScanMode mode, long maxAge, IScanListener listener) {
+        FutureTask<ProcList<?>> task;
+        ProcList<?> result = null;
+
+        synchronized (mStates) {
+            ScanState state = getState(mode);
+
+            if (state.mResult != null && SystemClock.elapsedRealtime() - state.mResultTime <= maxAge) {
+                task = new FutureTask<ProcList<?>>(new ResultCallable(state.mResult));
+                result = state.mResult;
+
+            } else if (state.mPending != null) {
+                task = state.mPending;
+
+                if (listener != null) {
+                    state.mListeners.add(listener);
+                }
+
+            } else {
+                task = new FutureTask<ProcList<?>>(new ScanCallable(mode));
+                state.mPending = task;
+
+                if (listener != null) {
+                    state.mListeners.add(listener);
+                }
+
+                mExecutor.execute(task);
+            }
+        }
+
+        if (result != null) {
+            task.run();
+
+            if (listener != null) {
+                listener.onScanResult(mode, result);
+            }
+        }
+
+        return task;
+    }
+
+    /*
+     * Get the last result of 'mode' without scanning, if it is no older than 'maxAge' milliseconds
+     * and has usage. Returns NULL otherwise.
+     */
+    public ProcList<?> getResult(ScanMode mode, long maxAge) {
+        synchronized (mStates) {
+            ScanState state = getState(mode);
+
+            if (state.mResult != null && state.mPrimed && SystemClock.elapsedRealtime() - state.mResultTime <= maxAge) {
+                return state.mResult;
+            }
+        }
+
+        return null;
+    }
+
+    /*
+     * Receive results of 'mode' roughly every 'interval' milliseconds, until unsubscribe() is called.
+     * A listener can only subscribe to one mode, so subscribing again replaces the last subscription.
+     * The listener is invoked from the scanner thread.
+     */
+    public void subscribe(ScanMode mode, long interval, IScanListener listener) {
+        synchronized (mStates) {
+            unsubscribe(listener);
+
+            Subscriber subscriber = new Subscriber();
+            subscriber.mListener = listener;
+            subscriber.mInterval = interval;
+
+            getState(mode).mSubscribers.add(subscriber);
+            updateSampler(mode, true);
+        }
+    }
+
+    public void unsubscribe(IScanListener listener) {
+        synchronized (mStates) {
+            for (Map.Entry<ScanMode, ScanState> entry : mStates.entrySet()) {
+                List<Subscriber> subscribers = entry.getValue().mSubscribers;
+
+                for (int i=0; i < subscribers.size(); i++) {
+                    if (subscribers.get(i).mListener == listener) {
+                        subscribers.remove(i);
+                        updateSampler(entry.getKey(), false);
+
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    public boolean isSubscribed(IScanListener listener, ScanMode mode) {
+        synchronized (mStates) {
+            for (Subscriber subscriber : getState(mode).mSubscribers) {
+                if (subscriber.mListener == listener) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    protected ScanState getState(ScanMode mode) {
+        if (mode == ScanMode.EVALUATE_COLLECTION || mode == ScanMode.COLLECT_THREADS || mode == ScanMode.COLLECT_UIDS) {
+            throw new IllegalArgumentException("The mode " + mode + " depends on a list from the caller");
+        }
+
+        ScanState state = mStates.get(mode);
+
+        if (state == null) {
+            mStates.put(mode, (state = new ScanState()));
+        }
+
+        return state;
+    }
+
+    /*
+     * Sample the mode at the shortest interval of it's subscribers. A new subscriber restarts the sampler,
+     * so that it receives a result right away, which is the last one if it is recent enough.
+     */
+    protected void updateSampler(ScanMode mode, boolean restart) {
+        ScanState state = mStates.get(mode);
+        long interval = 0;
+
+        for (Subscriber subscriber : state.mSubscribers) {
+            if (interval == 0 || subscriber.mInterval < interval) {
+                interval = subscriber.mInterval;
+            }
+        }
+
+        if (restart || interval != state.mSampleInterval) {
+            if (state.mSampler != null) {
+                state.mSampler.cancel(false);
+                state.mSampler = null;
+            }
+
+            if (interval > 0) {
+                state.mSampler = mExecutor.scheduleWithFixedDelay(new SampleTask(mode, interval / 2), 0, interval, TimeUnit.MILLISECONDS);
+            }
+
+            state.mSampleInterval = interval;
+        }
+    }
+
+    /*
+     * Hand a result to the subscribers whose interval has passed since their last one.
+     * Half the sample interval is allowed as slack, otherwise a subscriber of twice the sample interval
+     * could end up waiting for three samples when the scans does not take the exact same time.
+     */
+    protected void publish(ScanMode mode, ProcList<?> processList) {
+        List<IScanListener> listeners = new ArrayList<IScanListener>();
+
+        if (processList == null) {
+            return;
+        }
+
+        synchronized (mStates) {
+            ScanState state = mStates.get(mode);
+            long time = SystemClock.elapsedRealtime();
+            boolean primed = state.mPrimed || state.mResult != processList;
+
+            for (Subscriber subscriber : state.mSubscribers) {
+                if (subscriber.mLastResult != processList
+                        && (!subscriber.mPrimed || time - subscriber.mLastTime >= subscriber.mInterval - (state.mSampleInterval / 2))) {
+
+                    subscriber.mLastResult = processList;
+                    subscriber.mLastTime = time;
+                    subscriber.mPrimed = primed;
+
+                    listeners.add(subscriber.mListener);
+                }
+            }
+        }
+
+        for (IScanListener listener : listeners) {
+            listener.onScanResult(mode, processList);
+        }
+    }
+
+    protected class SampleTask implements Runnable, IScanListener {
+
+        protected final ScanMode mMode;
+        protected final long mMaxAge;
+
+        public SampleTask(ScanMode mode, long maxAge) {
+            mMode = mode;
+            mMaxAge = maxAge;
+        }
+
+        @Override
+        public void run() {
+            request(mMode, mMaxAge, this);
+        }
+
+        @Override
+        public void onScanResult(ScanMode mode, ProcList<?> processList) {
+            publish(mode, processList);
+        }
+    }
+
+    protected class ScanCallable implements Callable<ProcList<?>> {
+
+        protected final ScanMode mMode;
+
+        public ScanCallable(ScanMode mode) {
+            mMode = mode;
+        }
+
+        @Override
+        public ProcList<?> call() {
+            ProcList<?> lastResult;
+            ProcList<?> result = null;
+            List<IScanListener> listeners;
+
+            synchronized (mStates) {
+                lastResult = mStates.get(mMode).mResult;
+            }
+
+            try {
+                result = mProcessScanner.execute(mContext, mMode, lastResult);
+
+                if (result != null) {
+                    result.sortEntities();
+                }
+
+            } finally {
+                synchronized (mStates) {
+                    ScanState state = mStates.get(mMode);
+
+                    if (result != null) {
+                        state.mResult = result;
+                        state.mResultTime = SystemClock.elapsedRealtime();
+                        state.mPrimed = lastResult != null;
+
+                        if (!state.mPrimed && state.mSubscribers.size() > 0) {
+                            mExecutor.schedule(new SampleTask(mMode, 0), PRIME_DELAY, TimeUnit.MILLISECONDS);
+                        }
+                    }
+
+                    listeners = new ArrayList<IScanListener>(state.mListeners);
+                    state.mListeners.clear();
+                    state.mPending = null;
+                }
+            }
+
+            for (IScanListener listener : listeners) {
+                listener.onScanResult(mMode, result);
+            }
+
+            return result;
+        }
+    }
+
+    protected static class ResultCallable implements Callable<ProcList<?>> {
+
+        protected final ProcList<?> mResult;
+
+        public ResultCallable(ProcList<?> result) {
+            mResult = result;
+        }
+
+        @Override
+        public ProcList<?> call() {
+            return mResult;
+        }
+    }
+}
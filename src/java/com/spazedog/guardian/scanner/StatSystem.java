@@ -20,10 +20,103 @@
 package com.spazedog.guardian.scanner;
 
 
+import android.os.Parcel;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.spazedog.guardian.scanner.containers.ProcEntity;
 import com.spazedog.guardian.scanner.containers.ProcList;
+import com.spazedog.lib.utilsLib.JSONParcel;
+import com.spazedog.lib.utilsLib.JSONParcel.JSONException;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 public class StatSystem extends ProcList<StatSystem> {
 
+    /*
+     * The processes of a package or uid counted as one. Usage is measured against the time between the two scans,
+     * like the uid usage, so a process that started in between counts for less than it does on it's own.
+     */
+    public class Aggregate {
+
+        protected long mTime;
+        protected int mCount;
+        protected ProcEntity<?> mLargestEntity;
+
+        protected void add(ProcEntity<?> entity) {
+            long time = entity.getCpuTime();
+
+            if (mLargestEntity == null || time > mLargestEntity.getCpuTime()) {
+                mLargestEntity = entity;
+            }
+
+            mTime += time;
+            mCount++;
+        }
+
+        public int getProcessCount() {
+            return mCount;
+        }
+
+        /*
+         * The process that used the most CPU time
+         */
+        public ProcEntity<?> getLargestEntity() {
+            return mLargestEntity;
+        }
+
+        public long getCpuTime() {
+            return mTime;
+        }
+
+        public double getCpuUsage() {
+            long uptime = mStatUptime[1] - mStatUptime[0];
+
+            return uptime > 0l && mTime > 0l ?
+                    Math.round( (1000 * mTime) / uptime ) / 10.0d :
+                    0.0d;
+        }
+
+        public double getCoreUsage() {
+            long uptime = mStatUptime[1] - mStatUptime[0];
+            int cores = getOnlineCores();
+
+            return uptime > 0l && mTime > 0l ?
+                    Math.round( (1000 * mTime * cores) / uptime ) / 10.0d :
+                    0.0d;
+        }
+    }
+
+    /*
+     * Time of each core indexed by core number, which is 0 for cores that was offline
+     */
+    protected long[][] mCoreUptime = new long[][] {new long[0], new long[0]};
+    protected long[][] mCoreIdle = new long[][] {new long[0], new long[0]};
+
+    /*
+     * CPU time of each uid sorted by uid, which is only collected by ScanMode.COLLECT_UIDS
+     */
+    protected int[][] mUids = new int[][] {new int[0], new int[0]};
+    protected long[][] mUidTime = new long[][] {new long[0], new long[0]};
+
+    /*
+     * Processes that the last scan reported as exited, which is the listed processes that could not be found
+     * by ScanMode.EVALUATE_COLLECTION, or those that has exited since the last full scan for a delta scan.
+     * This only describes the last scan, so it is not parceled.
+     */
+    protected int[] mExited = new int[0];
+
+    /*
+     * Aggregates of the listed processes, which are added to as the scan adds entities.
+     * Entities of a delta scan are changed while they are listed, and a removed entity cannot be subtracted
+     * from the largest one, so in these cases they are dropped and built again once needed.
+     */
+    protected Map<String, Aggregate> mPackageAggregates = new HashMap<String, Aggregate>();
+    protected SparseArray<Aggregate> mUidAggregates = new SparseArray<Aggregate>();
+
     public static StatSystem cast(ProcList<?> instance) {
         if (instance != null && instance instanceof StatSystem) {
             return (StatSystem) instance;
@@ -39,4 +132,338 @@ public class StatSystem extends ProcList<StatSystem> {
     public StatSystem(int dataSize) {
         super(dataSize);
     }
+
+    @Override
+    public void updateStat(ScanBuffer stat, StatSystem process) {
+        super.updateStat(stat, process);
+
+        if (process != null) {
+            mCoreUptime = new long[][] {process.mCoreUptime[0], process.mCoreUptime[1]};
+            mCoreIdle = new long[][] {process.mCoreIdle[0], process.mCoreIdle[1]};
+            mUids = new int[][] {process.mUids[0], process.mUids[1]};
+            mUidTime = new long[][] {process.mUidTime[0], process.mUidTime[1]};
+        }
+
+        /*
+         * A delta scan updates the listed entities, which can change their name or uid
+         */
+        if (getEntitySize() > 0) {
+            mPackageAggregates = null;
+            mUidAggregates = null;
+
+            dropIndex();
+        }
+
+        if (stat != null) {
+            int pos = 0;
+
+            if (mCoreUptime[0].length > 0) {
+                if (mCoreUptime[1].length > 0) {
+                    mCoreUptime[0] = mCoreUptime[1];
+                    mCoreIdle[0] = mCoreIdle[1];
+                }
+
+                pos = 1;
+            }
+
+            /*
+             * This follows the record layout from libprocessScanner.so,
+             * where the core records follows the CPU record
+             */
+            int position = stat.getPosition();
+            int cores = stat.getCoreCount();
+            int size = 0;
+
+            for (int i=1; i <= cores; i++) {
+                size = Math.max(size, stat.moveToRecord(i).getCoreId() + 1);
+            }
+
+            long[] coreUptime = new long[size];
+            long[] coreIdle = new long[size];
+
+            for (int i=1; i <= cores; i++) {
+                int core = stat.moveToRecord(i).getCoreId();
+
+                coreUptime[core] = stat.getUptime();
+                coreIdle[core] = stat.getIdle();
+            }
+
+            /*
+             * Scans without uid records still moves the last uids back,
+             * so that the next uid scan is not compared against older ones
+             */
+            int first = stat.getFirstUid();
+            int[] uids = new int[stat.getUidCount()];
+            long[] uidTime = new long[uids.length];
+
+            for (int i=0; i < uids.length; i++) {
+                stat.moveToRecord(first + i);
+
+                uids[i] = stat.getProcessUid();
+                uidTime[i] = stat.getUTime() + stat.getSTime();
+            }
+
+            int[] exited = new int[stat.getExitedCount()];
+
+            for (int i=0, x=stat.getBurstEnd(); i < exited.length; i++) {
+                exited[i] = stat.moveToRecord(x++).getProcessId();
+            }
+
+            stat.moveToRecord(position);
+
+            mExited = exited;
+            mCoreUptime[pos] = coreUptime;
+            mCoreIdle[pos] = coreIdle;
+            mUids = new int[][] {mUids[1], uids};
+            mUidTime = new long[][] {mUidTime[1], uidTime};
+        }
+    }
+
+    @Override
+    public void addEntity(ProcEntity<?> entity) {
+        super.addEntity(entity);
+
+        if (mPackageAggregates != null && entity != null && findEntity(entity.getProcessId()) == entity) {
+            addAggregate(entity);
+        }
+    }
+
+    @Override
+    protected ProcEntity<?> removeEntity(ProcEntity<?> entity, boolean keepOrder) {
+        if (entity != null && findEntity(entity.getProcessId()) == entity) {
+            mPackageAggregates = null;
+            mUidAggregates = null;
+        }
+
+        return super.removeEntity(entity, keepOrder);
+    }
+
+    @Override
+    public void clearEntities() {
+        super.clearEntities();
+
+        mPackageAggregates = new HashMap<String, Aggregate>();
+        mUidAggregates = new SparseArray<Aggregate>();
+    }
+
+    /*
+     * Get the aggregate of all processes of a package, as given by ProcEntity.getPackageKey(),
+     * or of all processes of a uid. Returns NULL if none of them are listed.
+     */
+    public Aggregate getPackageAggregate(String packageKey) {
+        buildAggregates();
+
+        return mPackageAggregates.get(packageKey);
+    }
+
+    public Aggregate getUidAggregate(int uid) {
+        buildAggregates();
+
+        return mUidAggregates.get(uid);
+    }
+
+    public Collection<Aggregate> getPackageAggregates() {
+        buildAggregates();
+
+        return mPackageAggregates.values();
+    }
+
+    protected void buildAggregates() {
+        if (mPackageAggregates == null) {
+            mPackageAggregates = new HashMap<String, Aggregate>();
+            mUidAggregates = new SparseArray<Aggregate>();
+
+            for (ProcEntity<?> entity : this) {
+                addAggregate(entity);
+            }
+        }
+    }
+
+    protected void addAggregate(ProcEntity<?> entity) {
+        String packageKey = entity.getPackageKey();
+        Aggregate aggregate = mUidAggregates.get(entity.getProcessUid());
+
+        if (aggregate == null) {
+            mUidAggregates.put(entity.getProcessUid(), (aggregate = new Aggregate()));
+        }
+
+        aggregate.add(entity);
+
+        if (packageKey != null) {
+            aggregate = mPackageAggregates.get(packageKey);
+
+            if (aggregate == null) {
+                mPackageAggregates.put(packageKey, (aggregate = new Aggregate()));
+            }
+
+            aggregate.add(entity);
+        }
+    }
+
+    public int getExitedSize() {
+        return mExited.length;
+    }
+
+    public int getExitedId(int index) {
+        return mExited[index];
+    }
+
+    /*
+     * The number of core slots, which is the highest core number plus one.
+     * Offline cores are within this range, but has no usage.
+     */
+    public int getCoreSize() {
+        return Math.max(mCoreUptime[0].length, mCoreUptime[1].length);
+    }
+
+    /*
+     * Usage of a single core, or 0 if it was offline during one of the scans
+     */
+    public double getCpuUsage(int core) {
+        if (core < 0 || core >= mCoreUptime[0].length || core >= mCoreUptime[1].length
+                || mCoreUptime[0][core] <= 0l || mCoreUptime[1][core] <= 0l) {
+
+            return 0.0d;
+        }
+
+        long idle = mCoreIdle[1][core] - mCoreIdle[0][core];
+        long uptime = mCoreUptime[1][core] - mCoreUptime[0][core];
+        long time = uptime - idle;
+
+        return uptime > 0l && time > 0l ?
+                Math.round( (1000 * time) / uptime ) / 10.0d :
+                0.0d;
+    }
+
+    /*
+     * The usage of the busiest core
+     */
+    public double getMaxCoreUsage() {
+        double usage = 0.0d;
+
+        for (int i=0; i < getCoreSize(); i++) {
+            usage = Math.max(usage, getCpuUsage(i));
+        }
+
+        return usage;
+    }
+
+    /*
+     * The number of uids from the last scan
+     */
+    public int getUidSize() {
+        return mUids[1].length;
+    }
+
+    public int getUid(int index) {
+        return mUids[1][index];
+    }
+
+    /*
+     * Usage of all processes of a uid, or 0 if it was not part of both scans
+     */
+    public double getUidUsage(int uid) {
+        long uptime = mStatUptime[1] - mStatUptime[0];
+        long time = getUidTime(uid);
+
+        return uptime > 0l && time > 0l ?
+                Math.round( (1000 * time) / uptime ) / 10.0d :
+                0.0d;
+    }
+
+    public double getUidCoreUsage(int uid) {
+        long uptime = mStatUptime[1] - mStatUptime[0];
+        long time = getUidTime(uid);
+        int cores = getOnlineCores();
+
+        return uptime > 0l && time > 0l ?
+                Math.round( (1000 * time * cores) / uptime ) / 10.0d :
+                0.0d;
+    }
+
+    protected long getUidTime(int uid) {
+        int last = Arrays.binarySearch(mUids[0], uid);
+        int current = Arrays.binarySearch(mUids[1], uid);
+
+        /*
+         * The time starts over if the uid group is removed and created again
+         */
+        return last >= 0 && current >= 0 ? Math.max(0l, mUidTime[1][current] - mUidTime[0][last]) : 0l;
+    }
+
+
+    /* ============================================================================================================
+     * ------------------------------------------------------------------------------------------------------------
+     *
+     * PARCEL IMPLEMENTATION
+     *
+     * ------------------------------------------------------------------------------------------------------------
+     */
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        super.writeToParcel(out, flags);
+
+        out.writeLongArray(mCoreUptime[0]);
+        out.writeLongArray(mCoreUptime[1]);
+        out.writeLongArray(mCoreIdle[0]);
+        out.writeLongArray(mCoreIdle[1]);
+        out.writeIntArray(mUids[0]);
+        out.writeIntArray(mUids[1]);
+        out.writeLongArray(mUidTime[0]);
+        out.writeLongArray(mUidTime[1]);
+    }
+
+    @Override
+    public void readFromParcel(Parcel in) {
+        super.readFromParcel(in);
+
+        mCoreUptime = new long[][] {in.createLongArray(), in.createLongArray()};
+        mCoreIdle = new long[][] {in.createLongArray(), in.createLongArray()};
+        mUids = new int[][] {in.createIntArray(), in.createIntArray()};
+        mUidTime = new long[][] {in.createLongArray(), in.createLongArray()};
+    }
+
+
+    /* ============================================================================================================
+     * ------------------------------------------------------------------------------------------------------------
+     *
+     * JSON IMPLEMENTATION
+     *
+     * ------------------------------------------------------------------------------------------------------------
+     */
+
+    @Override
+    public void writeToJSON(JSONParcel out) {
+        super.writeToJSON(out);
+
+        try {
+            out.writeLongArray(mCoreUptime[0]);
+            out.writeLongArray(mCoreUptime[1]);
+            out.writeLongArray(mCoreIdle[0]);
+            out.writeLongArray(mCoreIdle[1]);
+            out.writeIntArray(mUids[0]);
+            out.writeIntArray(mUids[1]);
+            out.writeLongArray(mUidTime[0]);
+            out.writeLongArray(mUidTime[1]);
+
+        } catch (JSONException e) {
+            Log.e(getClass().getName(), e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void readFromJSON(JSONParcel in) {
+        super.readFromJSON(in);
+
+        try {
+            mCoreUptime = new long[][] {in.readLongArray(), in.readLongArray()};
+            mCoreIdle = new long[][] {in.readLongArray(), in.readLongArray()};
+            mUids = new int[][] {in.readIntArray(), in.readIntArray()};
+            mUidTime = new long[][] {in.readLongArray(), in.readLongArray()};
+
+        } catch (JSONException e) {
+            Log.e(getClass().getName(), e.getMessage(), e);
+        }
+    }
 }
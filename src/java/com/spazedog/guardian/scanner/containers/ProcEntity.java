@@ -31,6 +31,7 @@ import android.util.Log;
 
 import com.spazedog.guardian.Common;
 import com.spazedog.guardian.R;
+import com.spazedog.guardian.scanner.ScanBuffer;
 import com.spazedog.lib.utilsLib.JSONParcel;
 import com.spazedog.lib.utilsLib.JSONParcel.JSONException;
 import com.spazedog.lib.utilsLib.utils.Conversion;
@@ -41,11 +42,44 @@ public abstract class ProcEntity<T extends ProcEntity> extends ProcStat<T> imple
     protected int mEntityImportance = 0;
     protected int mEntityUid = 0;
     protected int mEntityPid = 0;
-    protected long[] mEntityUTime = new long[]{0l, 0l};
-    protected long[] mEntitySTime = new long[]{0l, 0l};
-    protected long[] mEntityCUTime = new long[]{0l, 0l};
-    protected long[] mEntityCSTime = new long[]{0l, 0l};
-    protected long[] mEntityUptime = new long[]{0l, 0l};
+
+    /*
+     * The times from the last two scans are kept in a single array, with a pair of [last, current] at each of these offsets.
+     * The array is shared with the entity that continues from this one.
+     */
+    protected static final int TIME_UTIME = 0;
+    protected static final int TIME_STIME = 2;
+    protected static final int TIME_CUTIME = 4;
+    protected static final int TIME_CSTIME = 6;
+    protected static final int TIME_UPTIME = 8;
+    protected static final int TIME_CPU_DELAY = 10;
+    protected static final int TIME_BLKIO_DELAY = 12;
+    protected static final int TIME_SWAPIN_DELAY = 14;
+    protected static final int TIME_SIZE = 16;
+
+    protected long[] mEntityTimes = new long[TIME_SIZE];
+
+    /*
+     * The usage of the last scans beyond the two above. Like the times, it is shared with the entity that continues from this one.
+     * The size only applies to new histories, and 0 disables them.
+     */
+    protected static volatile int oHistorySize = 8;
+
+    protected ProcHistory mHistory;
+
+    public static void setHistorySize(int size) {
+        oHistorySize = Math.max(0, size);
+    }
+
+    public static int getHistorySize() {
+        return oHistorySize;
+    }
+
+    /*
+     * The usage at the time of the last ProcList.sortEntities(),
+     * so that it is not calculated again for each comparison
+     */
+    double mSortUsage;
 
     public ProcEntity() {}
 
@@ -53,64 +87,123 @@ public abstract class ProcEntity<T extends ProcEntity> extends ProcStat<T> imple
 
     @Override
     public int compareTo(ProcEntity<?> sibling) {
-        int comp = Double.compare(sibling.getCpuUsage(), getCpuUsage());
+        int comp = Double.compare(sibling.mSortUsage, mSortUsage);
 
         if (comp == 0) {
-            comp = sibling.getImportance() - getImportance();
+            comp = compareEqualUsage(sibling);
         }
 
         return comp;
     }
 
+    /*
+     * Used by compareTo() when both has the same usage
+     */
+    protected int compareEqualUsage(ProcEntity<?> sibling) {
+        return sibling.getImportance() - getImportance();
+    }
+
     @Override
-    public void updateStat(String[] stat, T process) {
+    public void updateStat(ScanBuffer stat, T process) {
         super.updateStat(stat, process);
 
         if (process != null) {
-            mEntityUTime = process.mEntityUTime;
-            mEntitySTime = process.mEntitySTime;
-            mEntityCUTime = process.mEntityCUTime;
-            mEntityCSTime = process.mEntityCSTime;
-            mEntityUptime = process.mEntityUptime;
+            mEntityTimes = process.mEntityTimes;
+            mHistory = process.mHistory;
         }
 
         if (stat != null) {
-            int size = stat.length;
             int pos = 0;
 
-            if (size >= 8) {
-                if (mEntityUTime[0] > 0l && mEntitySTime[0] > 0l) {
-                    if (mEntityUTime[1] > 0l && mEntitySTime[1] > 0l) {
-                        mEntityUTime[0] = mEntityUTime[1];
-                        mEntitySTime[0] = mEntitySTime[1];
-                        mEntityCUTime[0] = mEntityCUTime[1];
-                        mEntityCSTime[0] = mEntityCSTime[1];
-                        mEntityUptime[0] = mEntityUptime[1];
+            if (mEntityTimes[TIME_UTIME] > 0l && mEntityTimes[TIME_STIME] > 0l) {
+                if (mEntityTimes[TIME_UTIME + 1] > 0l && mEntityTimes[TIME_STIME + 1] > 0l) {
+                    for (int i=0; i < TIME_SIZE; i += 2) {
+                        mEntityTimes[i] = mEntityTimes[i + 1];
                     }
-
-                    pos = 1;
                 }
 
-                /*
-                 * This follows the schema from libprocessScanner.so
-                 */
-                mEntityName = stat[3];
-                mEntityUid = Integer.valueOf(stat[1]);
-                mEntityPid = Integer.valueOf(stat[2]);
-                mEntityImportance = Integer.valueOf(stat[0]);
-                mEntityUTime[pos] = Long.valueOf(stat[4]);
-                mEntitySTime[pos] = Long.valueOf(stat[5]);
-                mEntityCUTime[pos] = Long.valueOf(stat[6]);
-                mEntityCSTime[pos] = Long.valueOf(stat[7]);
-                mEntityUptime[pos] = Long.valueOf(stat[8]);
+                pos = 1;
+            }
+
+            /*
+             * This follows the record layout from libprocessScanner.so
+             */
+            mEntityName = stat.getProcessName();
+            mEntityUid = stat.getProcessUid();
+            mEntityPid = stat.getProcessId();
+            mEntityImportance = stat.getType();
+            mEntityTimes[TIME_UTIME + pos] = stat.getUTime();
+            mEntityTimes[TIME_STIME + pos] = stat.getSTime();
+            mEntityTimes[TIME_CUTIME + pos] = stat.getCUTime();
+            mEntityTimes[TIME_CSTIME + pos] = stat.getCSTime();
+            mEntityTimes[TIME_UPTIME + pos] = stat.getStartTime();
+            mEntityTimes[TIME_CPU_DELAY + pos] = stat.getCpuDelay();
+            mEntityTimes[TIME_BLKIO_DELAY + pos] = stat.getBlkioDelay();
+            mEntityTimes[TIME_SWAPIN_DELAY + pos] = stat.getSwapinDelay();
+
+            if (pos > 0) {
+                addHistory();
+            }
+        }
+    }
+
+    /*
+     * Used for processes that was left out of a delta scan, as nothing has changed since the last one.
+     * The last process times are repeated, while 'stat' should point at the CPU record.
+     */
+    public void updateUnchanged(ScanBuffer stat) {
+        super.updateStat(stat, null);
+
+        if (mEntityTimes[TIME_UTIME] > 0l && mEntityTimes[TIME_STIME] > 0l) {
+            int last = mEntityTimes[TIME_UTIME + 1] > 0l && mEntityTimes[TIME_STIME + 1] > 0l ? 1 : 0;
+
+            for (int i=0; i < TIME_SIZE; i += 2) {
+                mEntityTimes[i] = mEntityTimes[i + last];
+                mEntityTimes[i + 1] = mEntityTimes[i + last];
+            }
+
+            addHistory();
+        }
+    }
+
+    protected void addHistory() {
+        if (oHistorySize > 0) {
+            if (mHistory == null || mHistory.getSize() != oHistorySize) {
+                mHistory = new ProcHistory(oHistorySize);
+            }
+
+            mHistory.addSample(getCpuTime(), getIntervalUptime());
+
+        } else {
+            mHistory = null;
+        }
+    }
+
+    /*
+     * Used after updateStat() for processes that started and exited between two full scans (FLAG_EVENTS).
+     * Their only sample is measured from zero, against the CPU time of the last scan in 'system'.
+     */
+    public void updateBurst(ProcStat<?> system) {
+        mStatUptime[1] = mStatUptime[0];
+        mStatIdle[1] = mStatIdle[0];
+        mStatCores[1] = mStatCores[0];
+        mStatUptime[0] = system.mStatUptime[0];
+        mStatIdle[0] = system.mStatIdle[0];
+        mStatCores[0] = system.mStatCores[0];
+
+        for (int i=0; i < TIME_SIZE; i += 2) {
+            mEntityTimes[i + 1] = mEntityTimes[i];
+
+            if (i != TIME_UPTIME) {
+                mEntityTimes[i] = 0l;
             }
         }
     }
 
     @Override
     public double getCpuUsage() {
-        long uptime = (mStatUptime[1] - mEntityUptime[1]) - (mStatUptime[0] - mEntityUptime[0]);
-        long idle = uptime - ((mEntityUTime[1] + mEntitySTime[1]) - (mEntityUTime[0] + mEntitySTime[0]));
+        long uptime = getIntervalUptime();
+        long idle = uptime - ((mEntityTimes[TIME_UTIME + 1] + mEntityTimes[TIME_STIME + 1]) - (mEntityTimes[TIME_UTIME] + mEntityTimes[TIME_STIME]));
         long time = uptime - idle;
 
         return uptime > 0l && time > 0l ?
@@ -118,10 +211,25 @@ public abstract class ProcEntity<T extends ProcEntity> extends ProcStat<T> imple
                 0.0d;
     }
 
+    @Override
+    public double getCoreUsage() {
+        long uptime = getIntervalUptime();
+        long idle = uptime - ((mEntityTimes[TIME_UTIME + 1] + mEntityTimes[TIME_STIME + 1]) - (mEntityTimes[TIME_UTIME] + mEntityTimes[TIME_STIME]));
+        long time = uptime - idle;
+        int cores = getOnlineCores();
+
+        /*
+         * Uptime is counted on all cores, so one core has only seen a part of it
+         */
+        return uptime > 0l && time > 0l ?
+                Math.round( (1000 * time * cores) / uptime ) / 10.0d :
+                0.0d;
+    }
+
     @Override
     public double getAverageCpu() {
-        long uptime = mStatUptime[1] > 0 ? (mStatUptime[1] - mEntityUptime[1]) : (mStatUptime[0] - mEntityUptime[0]);
-        long idle = uptime - (mEntityUTime[1] > 0 ? (mEntityUTime[1] + mEntitySTime[1]) : (mEntityUTime[0] + mEntitySTime[0]));
+        long uptime = mStatUptime[1] > 0 ? (mStatUptime[1] - mEntityTimes[TIME_UPTIME + 1]) : (mStatUptime[0] - mEntityTimes[TIME_UPTIME]);
+        long idle = uptime - (mEntityTimes[TIME_UTIME + 1] > 0 ? (mEntityTimes[TIME_UTIME + 1] + mEntityTimes[TIME_STIME + 1]) : (mEntityTimes[TIME_UTIME] + mEntityTimes[TIME_STIME]));
         long time = uptime - idle;
 
         return uptime > 0l && time > 0l ?
@@ -129,6 +237,66 @@ public abstract class ProcEntity<T extends ProcEntity> extends ProcStat<T> imple
                 0.0d;
     }
 
+    /*
+     * The part of the uptime between the last two scans where the process was running
+     */
+    protected long getIntervalUptime() {
+        return (mStatUptime[1] - mEntityTimes[TIME_UPTIME + 1]) - (mStatUptime[0] - mEntityTimes[TIME_UPTIME]);
+    }
+
+    /*
+     * Usage of the last scans from the history, in the same unit as getCpuUsage().
+     * Index 0 of the samples is the last scan. The moving usage weights the recent scans the most,
+     * unlike getAverageCpu() which covers the whole life of the process.
+     */
+    public int getSampleCount() {
+        return mHistory != null ? mHistory.getSampleCount() : 0;
+    }
+
+    public double getSampleUsage(int index) {
+        return mHistory != null ? mHistory.getSampleUsage(index) : 0.0d;
+    }
+
+    public double getMovingUsage() {
+        return mHistory != null ? mHistory.getAverageUsage() : 0.0d;
+    }
+
+    public double getPercentileUsage(double percentile) {
+        return mHistory != null ? mHistory.getPercentileUsage(percentile) : 0.0d;
+    }
+
+    /*
+     * CPU time used between the last two scans, which is what the usage is measured from
+     */
+    public long getCpuTime() {
+        long time = (mEntityTimes[TIME_UTIME + 1] + mEntityTimes[TIME_STIME + 1]) - (mEntityTimes[TIME_UTIME] + mEntityTimes[TIME_STIME]);
+
+        return time > 0l ? time : 0l;
+    }
+
+    /*
+     * Time in milliseconds that the process has been waiting for a cpu, for block I/O
+     * or for pages to be swapped in between the last two scans.
+     * These are only collected by the taskstats backend, and only if the kernel has delay accounting enabled.
+     */
+    public long getCpuDelay() {
+        return getDelay(TIME_CPU_DELAY);
+    }
+
+    public long getBlkioDelay() {
+        return getDelay(TIME_BLKIO_DELAY);
+    }
+
+    public long getSwapinDelay() {
+        return getDelay(TIME_SWAPIN_DELAY);
+    }
+
+    protected long getDelay(int offset) {
+        long time = mEntityTimes[offset + 1] - mEntityTimes[offset];
+
+        return mEntityTimes[offset] > 0l && time > 0l ? time / 1000000l : 0l;
+    }
+
     /*
      * TODO: Finish this
      */
@@ -153,6 +321,21 @@ public abstract class ProcEntity<T extends ProcEntity> extends ProcStat<T> imple
         return mEntityImportance;
     }
 
+    /*
+     * Key used to group the processes of an application. Unlike DataLoader.getPackageName()
+     * this does not ask the package manager, so it does not change once the process has been named.
+     */
+    public String getPackageKey() {
+        return null;
+    }
+
+    /*
+     * Whether the process was part of the last two scans, which it needs to have any usage
+     */
+    public boolean isMeasured() {
+        return mEntityTimes[TIME_UTIME + 1] > 0l || mEntityTimes[TIME_STIME + 1] > 0l;
+    }
+
     public boolean isPerceptible() {
         int importance = getImportance();
 
@@ -180,11 +363,12 @@ public abstract class ProcEntity<T extends ProcEntity> extends ProcStat<T> imple
         out.writeInt(mEntityUid);
         out.writeInt(mEntityPid);
         out.writeInt(mEntityImportance);
-        out.writeLongArray(mEntityUTime);
-        out.writeLongArray(mEntitySTime);
-        out.writeLongArray(mEntityCUTime);
-        out.writeLongArray(mEntityCSTime);
-        out.writeLongArray(mEntityUptime);
+        out.writeLongArray(mEntityTimes);
+        out.writeInt(mHistory != null ? 1 : 0);
+
+        if (mHistory != null) {
+            mHistory.writeToParcel(out);
+        }
     }
 
     @Override
@@ -196,11 +380,9 @@ public abstract class ProcEntity<T extends ProcEntity> extends ProcStat<T> imple
         mEntityPid = in.readInt();
         mEntityImportance = in.readInt();
 
-        in.readLongArray(mEntityUTime);
-        in.readLongArray(mEntitySTime);
-        in.readLongArray(mEntityCUTime);
-        in.readLongArray(mEntityCSTime);
-        in.readLongArray(mEntityUptime);
+        in.readLongArray(mEntityTimes);
+
+        mHistory = in.readInt() > 0 ? new ProcHistory(in) : null;
     }
 
 
@@ -221,11 +403,14 @@ public abstract class ProcEntity<T extends ProcEntity> extends ProcStat<T> imple
             out.writeInt(mEntityUid);
             out.writeInt(mEntityPid);
             out.writeInt(mEntityImportance);
-            out.writeLongArray(mEntityUTime);
-            out.writeLongArray(mEntitySTime);
-            out.writeLongArray(mEntityCUTime);
-            out.writeLongArray(mEntityCSTime);
-            out.writeLongArray(mEntityUptime);
+
+            /*
+             * This is stored in the databases, so each time is still written as it's own pair.
+             * Version 1 rows holds the pairs before TIME_CPU_DELAY, see ProcStat.JSON_VERSION.
+             */
+            for (int i=0; i < TIME_SIZE; i += 2) {
+                out.writeLongArray(new long[] {mEntityTimes[i], mEntityTimes[i + 1]});
+            }
 
         } catch (JSONException e) {
             Log.e(getClass().getName(), e.getMessage(), e);
@@ -242,11 +427,19 @@ public abstract class ProcEntity<T extends ProcEntity> extends ProcStat<T> imple
             mEntityPid = in.readInt();
             mEntityImportance = in.readInt();
 
-            mEntityUTime = in.readLongArray();
-            mEntitySTime = in.readLongArray();
-            mEntityCUTime = in.readLongArray();
-            mEntityCSTime = in.readLongArray();
-            mEntityUptime = in.readLongArray();
+            mEntityTimes = new long[TIME_SIZE];
+
+            /*
+             * The delays was added by version 2
+             */
+            int size = mJSONVersion >= 2 ? TIME_SIZE : TIME_CPU_DELAY;
+
+            for (int i=0; i < size; i += 2) {
+                long[] time = in.readLongArray();
+
+                mEntityTimes[i] = time[0];
+                mEntityTimes[i + 1] = time[1];
+            }
 
         } catch (JSONException e) {
             Log.e(getClass().getName(), e.getMessage(), e);
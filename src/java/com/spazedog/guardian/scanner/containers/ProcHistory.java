@@ -0,0 +1,136 @@
+/*
+ * This file is part of the Guardian Project: https://github.com/spazedog/guardian
+ *
+ * Copyright (c) 2015 Daniel Bergløv
+ *
+ * Guardian is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Guardian is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Guardian. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.guardian.scanner.containers;
+
+
+import android.os.Parcel;
+
+import java.util.Arrays;
+
+/*
+ * The usage of a process over it's last scans, kept in a fixed number of slots that are overwritten from the oldest.
+ * Each sample is the CPU time used during an interval and the uptime of that interval,
+ * from which the usage is calculated the same way as ProcEntity.getCpuUsage().
+ *
+ * The average is an exponentially weighted moving average that is updated with each sample,
+ * weighted by 2 / (size + 1) so that it roughly follows the same number of scans as the buffer holds.
+ */
+public class ProcHistory {
+
+    protected long[] mTicks;
+    protected long[] mUptime;
+    protected int mNext = 0;
+    protected int mCount = 0;
+    protected double mAverage = 0.0d;
+
+    public ProcHistory(int size) {
+        mTicks = new long[size];
+        mUptime = new long[size];
+    }
+
+    public ProcHistory(Parcel in) {
+        mTicks = in.createLongArray();
+        mUptime = in.createLongArray();
+        mNext = in.readInt();
+        mCount = in.readInt();
+        mAverage = in.readDouble();
+    }
+
+    public void writeToParcel(Parcel out) {
+        out.writeLongArray(mTicks);
+        out.writeLongArray(mUptime);
+        out.writeInt(mNext);
+        out.writeInt(mCount);
+        out.writeDouble(mAverage);
+    }
+
+    public void addSample(long ticks, long uptime) {
+        mTicks[mNext] = ticks;
+        mUptime[mNext] = uptime;
+        mNext = (mNext + 1) % mTicks.length;
+
+        double usage = getUsage(ticks, uptime);
+
+        if (mCount < mTicks.length) {
+            mCount++;
+        }
+
+        mAverage = mCount == 1 ? usage : mAverage + ((usage - mAverage) * 2.0d / (mTicks.length + 1));
+    }
+
+    public void clear() {
+        mNext = 0;
+        mCount = 0;
+        mAverage = 0.0d;
+    }
+
+    public int getSize() {
+        return mTicks.length;
+    }
+
+    public int getSampleCount() {
+        return mCount;
+    }
+
+    /*
+     * Index 0 is the newest sample
+     */
+    public double getSampleUsage(int index) {
+        if (index < 0 || index >= mCount) {
+            return 0.0d;
+        }
+
+        int slot = (mNext - 1 - index + mTicks.length) % mTicks.length;
+
+        return getUsage(mTicks[slot], mUptime[slot]);
+    }
+
+    public double getAverageUsage() {
+        return mAverage;
+    }
+
+    /*
+     * The usage that 'percentile' (0-100) of the samples are at or below, using the nearest rank.
+     * The buffer is small, so the samples are simply sorted for each call.
+     */
+    public double getPercentileUsage(double percentile) {
+        if (mCount == 0) {
+            return 0.0d;
+        }
+
+        double[] usage = new double[mCount];
+
+        for (int i=0; i < mCount; i++) {
+            usage[i] = getUsage(mTicks[i], mUptime[i]);
+        }
+
+        Arrays.sort(usage);
+
+        int rank = (int) Math.ceil((Math.max(0.0d, Math.min(100.0d, percentile)) / 100.0d) * mCount);
+
+        return usage[Math.max(0, rank - 1)];
+    }
+
+    protected static double getUsage(long ticks, long uptime) {
+        return uptime > 0l && ticks > 0l ?
+                Math.round( (1000 * ticks) / uptime ) / 10.0d :
+                0.0d;
+    }
+}
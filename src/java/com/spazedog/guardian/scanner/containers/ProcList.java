@@ -22,11 +22,11 @@ package com.spazedog.guardian.scanner.containers;
 
 import android.os.Parcel;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import com.spazedog.lib.utilsLib.JSONParcel;
 import com.spazedog.lib.utilsLib.JSONParcel.JSONException;
-import com.spazedog.lib.utilsLib.SparseList;
-import com.spazedog.lib.utilsLib.SparseMap;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -38,15 +38,28 @@ import java.util.Map;
 public abstract class ProcList<T extends ProcList> extends ProcStat<T> implements Iterable<ProcEntity<?>> {
 
     private List<ProcEntity<?>> mOrderedEntities;
-    private Map<Integer, ProcEntity<?>> mMappedEntities;
+
+    /*
+     * Position of each entity by pid, without boxing each pid as a map key would
+     */
+    private SparseIntArray mPositions;
+
+    /*
+     * Entities by uid, package and process name. These are only built once they are needed,
+     * and are then updated along with the list. Entities that are changed while they are listed
+     * can change their name or uid, in which case the owner of the list must drop them with dropIndex().
+     */
+    private SparseArray<List<ProcEntity<?>>> mUidIndex;
+    private Map<String, List<ProcEntity<?>>> mPackageIndex;
+    private Map<String, List<ProcEntity<?>>> mNameIndex;
 
     public ProcList() {
         this(0);
     }
 
     public ProcList(int dataSize) {
-        mOrderedEntities = new SparseList<ProcEntity<?>>(dataSize);
-        mMappedEntities = new SparseMap<ProcEntity<?>>(dataSize);
+        mOrderedEntities = new ArrayList<ProcEntity<?>>(dataSize);
+        mPositions = new SparseIntArray(dataSize);
     }
 
     @Override
@@ -58,9 +71,13 @@ public abstract class ProcList<T extends ProcList> extends ProcStat<T> implement
         if (entity != null) {
             int pid = entity.getProcessId();
 
-            if (!mMappedEntities.containsKey(pid)) {
-                mMappedEntities.put(pid, entity);
+            if (mPositions.indexOfKey(pid) < 0) {
+                mPositions.put(pid, mOrderedEntities.size());
                 mOrderedEntities.add(entity);
+
+                if (mUidIndex != null) {
+                    addIndex(entity);
+                }
             }
         }
     }
@@ -70,26 +87,86 @@ public abstract class ProcList<T extends ProcList> extends ProcStat<T> implement
     }
 
     public ProcEntity<?> findEntity(int pid) {
-        return mMappedEntities.get(pid);
+        int position = mPositions.get(pid, -1);
+
+        return position >= 0 ? mOrderedEntities.get(position) : null;
+    }
+
+    /*
+     * Get the entities of a uid, a package or a process name. The returned lists must not be changed.
+     * Packages are matched using ProcEntity.getPackageKey().
+     */
+    public List<ProcEntity<?>> findEntitiesByUid(int uid) {
+        buildIndex();
+
+        return getIndexed(mUidIndex.get(uid));
+    }
+
+    public List<ProcEntity<?>> findEntitiesByPackage(String packageName) {
+        buildIndex();
+
+        return getIndexed(mPackageIndex.get(packageName));
+    }
+
+    public List<ProcEntity<?>> findEntitiesByName(String processName) {
+        buildIndex();
+
+        return getIndexed(mNameIndex.get(processName));
+    }
+
+    public ProcEntity<?> findEntity(String processName) {
+        List<ProcEntity<?>> entities = findEntitiesByName(processName);
+
+        return entities.size() > 0 ? entities.get(0) : null;
     }
 
+    /*
+     * The remaining entities keeps their order, so the entities after 'location' are moved one place back
+     */
     public ProcEntity<?> removeEntity(int location) {
-        return removeEntity(mOrderedEntities.get(location));
+        return removeEntity(mOrderedEntities.get(location), true);
     }
 
+    /*
+     * The last entity is moved into the place of the removed one, so that nothing else has to be moved.
+     * This changes the order of the list, so a sorted list should be sorted again after removing entities.
+     * Use removeEntity(int) to keep the order.
+     */
     public ProcEntity<?> removeEntity(ProcEntity<?> entity) {
+        return removeEntity(entity, false);
+    }
+
+    protected ProcEntity<?> removeEntity(ProcEntity<?> entity, boolean keepOrder) {
         if (entity != null) {
-            int key = 0;
+            int index = mPositions.indexOfKey(entity.getProcessId());
+            int position = index >= 0 ? mPositions.valueAt(index) : -1;
+
+            if (position >= 0 && mOrderedEntities.get(position) == entity) {
+                int last = mOrderedEntities.size() - 1;
+
+                mPositions.removeAt(index);
+
+                if (keepOrder) {
+                    mOrderedEntities.remove(position);
+
+                    for (int i=position; i < last; i++) {
+                        mPositions.put(mOrderedEntities.get(i).getProcessId(), i);
+                    }
+
+                } else {
+                    if (position < last) {
+                        ProcEntity<?> lastEntity = mOrderedEntities.get(last);
 
-            for (Map.Entry<Integer, ProcEntity<?>> entry : mMappedEntities.entrySet()) {
-                if (entry.getValue() == entity) {
-                    key = entry.getKey(); break;
+                        mOrderedEntities.set(position, lastEntity);
+                        mPositions.put(lastEntity.getProcessId(), position);
+                    }
+
+                    mOrderedEntities.remove(last);
                 }
-            }
 
-            if (key > 0) {
-                mMappedEntities.remove(key);
-                mOrderedEntities.remove(entity);
+                if (mUidIndex != null) {
+                    removeIndex(entity);
+                }
             }
         }
 
@@ -101,12 +178,94 @@ public abstract class ProcList<T extends ProcList> extends ProcStat<T> implement
     }
 
     public ProcList<T> sortEntities() {
-        Collections.sort(mOrderedEntities); return this;
+        /*
+         * The usage is calculated once for each entity, instead of twice for each comparison
+         */
+        for (ProcEntity<?> entity : mOrderedEntities) {
+            entity.mSortUsage = entity.getCpuUsage();
+        }
+
+        Collections.sort(mOrderedEntities);
+
+        for (int i=0; i < mOrderedEntities.size(); i++) {
+            mPositions.put(mOrderedEntities.get(i).getProcessId(), i);
+        }
+
+        return this;
     }
 
     public void clearEntities() {
         mOrderedEntities.clear();
-        mMappedEntities.clear();
+        mPositions.clear();
+        dropIndex();
+    }
+
+    protected void dropIndex() {
+        mUidIndex = null;
+        mPackageIndex = null;
+        mNameIndex = null;
+    }
+
+    private void buildIndex() {
+        if (mUidIndex == null) {
+            mUidIndex = new SparseArray<List<ProcEntity<?>>>();
+            mPackageIndex = new HashMap<String, List<ProcEntity<?>>>();
+            mNameIndex = new HashMap<String, List<ProcEntity<?>>>();
+
+            for (ProcEntity<?> entity : mOrderedEntities) {
+                addIndex(entity);
+            }
+        }
+    }
+
+    private void addIndex(ProcEntity<?> entity) {
+        List<ProcEntity<?>> entities = mUidIndex.get(entity.getProcessUid());
+
+        if (entities == null) {
+            mUidIndex.put(entity.getProcessUid(), (entities = new ArrayList<ProcEntity<?>>(1)));
+        }
+
+        entities.add(entity);
+
+        addIndex(mNameIndex, entity.getProcessName(), entity);
+        addIndex(mPackageIndex, entity.getPackageKey(), entity);
+    }
+
+    private void addIndex(Map<String, List<ProcEntity<?>>> index, String key, ProcEntity<?> entity) {
+        if (key != null) {
+            List<ProcEntity<?>> entities = index.get(key);
+
+            if (entities == null) {
+                index.put(key, (entities = new ArrayList<ProcEntity<?>>(1)));
+            }
+
+            entities.add(entity);
+        }
+    }
+
+    private void removeIndex(ProcEntity<?> entity) {
+        List<ProcEntity<?>> entities = mUidIndex.get(entity.getProcessUid());
+
+        if (entities != null && entities.remove(entity) && entities.isEmpty()) {
+            mUidIndex.remove(entity.getProcessUid());
+        }
+
+        removeIndex(mNameIndex, entity.getProcessName(), entity);
+        removeIndex(mPackageIndex, entity.getPackageKey(), entity);
+    }
+
+    private void removeIndex(Map<String, List<ProcEntity<?>>> index, String key, ProcEntity<?> entity) {
+        if (key != null) {
+            List<ProcEntity<?>> entities = index.get(key);
+
+            if (entities != null && entities.remove(entity) && entities.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private List<ProcEntity<?>> getIndexed(List<ProcEntity<?>> entities) {
+        return entities != null ? Collections.unmodifiableList(entities) : Collections.<ProcEntity<?>>emptyList();
     }
 
 
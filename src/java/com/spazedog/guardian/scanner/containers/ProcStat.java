@@ -24,6 +24,7 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
 
+import com.spazedog.guardian.scanner.ScanBuffer;
 import com.spazedog.lib.utilsLib.JSONParcel;
 import com.spazedog.lib.utilsLib.JSONParcel.JSONException;
 import com.spazedog.lib.utilsLib.MultiParcelable;
@@ -35,35 +36,44 @@ public abstract class ProcStat<T extends ProcStat> implements MultiParcelable {
 
     protected long[] mStatUptime = new long[] {0l, 0l};
     protected long[] mStatIdle = new long[] {0l, 0l};
+    protected int[] mStatCores = new int[] {0, 0};
+
+    /*
+     * Entities are stored as JSON in the databases, so the layout is versioned to keep older rows readable.
+     * Rows without a version has the layout of version 1. The version of the last read is kept for the subclasses.
+     */
+    protected static final int JSON_VERSION = 2;
+
+    protected int mJSONVersion = JSON_VERSION;
 
     public ProcStat() {}
 
-    public void updateStat(String[] stat, T process) {
+    public void updateStat(ScanBuffer stat, T process) {
         if (process != null) {
             mStatUptime = process.mStatUptime;
             mStatIdle = process.mStatIdle;
+            mStatCores = process.mStatCores;
         }
 
         if (stat != null) {
-            int size = stat.length;
             int pos = 0;
 
-            if (size >= 3) {
-                if (mStatUptime[0] > 0l && mStatIdle[0] > 0l) {
-                    if (mStatUptime[1] > 0l && mStatIdle[1] > 0l) {
-                        mStatUptime[0] = mStatUptime[1];
-                        mStatIdle[0] = mStatIdle[1];
-                    }
-
-                    pos = 1;
+            if (mStatUptime[0] > 0l && mStatIdle[0] > 0l) {
+                if (mStatUptime[1] > 0l && mStatIdle[1] > 0l) {
+                    mStatUptime[0] = mStatUptime[1];
+                    mStatIdle[0] = mStatIdle[1];
+                    mStatCores[0] = mStatCores[1];
                 }
 
-                /*
-                 * This follows the schema from libprocessScanner.so
-                 */
-                mStatUptime[pos] = Long.valueOf(stat[size - 1]);
-                mStatIdle[pos] = Long.valueOf(stat[size - 2]);
+                pos = 1;
             }
+
+            /*
+             * This follows the record layout from libprocessScanner.so
+             */
+            mStatUptime[pos] = stat.getUptime();
+            mStatIdle[pos] = stat.getIdle();
+            mStatCores[pos] = stat.getCoreCount();
         }
     }
 
@@ -77,6 +87,31 @@ public abstract class ProcStat<T extends ProcStat> implements MultiParcelable {
                 0.0d;
     }
 
+    /*
+     * Usage measured in units of a single core, where 100% is one fully used core.
+     * This can go above 100% on multi-core devices, where getCpuUsage() would
+     * show one busy core out of eight as 12.5%.
+     */
+    public double getCoreUsage() {
+        long idle = mStatIdle[1] - mStatIdle[0];
+        long uptime = mStatUptime[1] - mStatUptime[0];
+        long time = uptime - idle;
+        int cores = getOnlineCores();
+
+        return uptime > 0l && time > 0l ?
+                Math.round( (1000 * time * cores) / uptime ) / 10.0d :
+                0.0d;
+    }
+
+    /*
+     * The number of cores that was online during the last scan
+     */
+    public int getOnlineCores() {
+        int cores = mStatCores[1] > 0 ? mStatCores[1] : mStatCores[0];
+
+        return cores > 0 ? cores : 1;
+    }
+
     public long getUptime() {
         return 0l;
     }
@@ -104,11 +139,13 @@ public abstract class ProcStat<T extends ProcStat> implements MultiParcelable {
         out.writeString(getClass().getName());
         out.writeLongArray(mStatUptime);
         out.writeLongArray(mStatIdle);
+        out.writeIntArray(mStatCores);
     }
 
     public void readFromParcel(Parcel in) {
         in.readLongArray(mStatUptime);
         in.readLongArray(mStatIdle);
+        in.readIntArray(mStatCores);
     }
 
 
@@ -124,8 +161,14 @@ public abstract class ProcStat<T extends ProcStat> implements MultiParcelable {
     public void writeToJSON(JSONParcel out) {
         try {
             out.writeString(getClass().getName());
+
+            /*
+             * Version 1 begins with an array, whose length is never negative
+             */
+            out.writeInt(-JSON_VERSION);
             out.writeLongArray(mStatUptime);
             out.writeLongArray(mStatIdle);
+            out.writeIntArray(mStatCores);
 
         } catch (JSONException e) {
             Log.e(getClass().getName(), e.getMessage(), e);
@@ -134,9 +177,24 @@ public abstract class ProcStat<T extends ProcStat> implements MultiParcelable {
 
     public void readFromJSON(JSONParcel in) {
         try {
+            int position = in.getDataPosition();
+            int version = in.readInt();
+
+            if (version < 0) {
+                mJSONVersion = -version;
+
+            } else {
+                in.setDataPosition(position);
+                mJSONVersion = 1;
+            }
+
             mStatUptime = in.readLongArray();
             mStatIdle = in.readLongArray();
 
+            if (mJSONVersion >= 2) {
+                mStatCores = in.readIntArray();
+            }
+
         } catch (JSONException e) {
             Log.e(getClass().getName(), e.getMessage(), e);
         }
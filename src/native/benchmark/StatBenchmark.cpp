@@ -0,0 +1,353 @@
+/*
+ * This file is part of the Guardian Project: https://github.com/spazedog/guardian
+ *
+ * Copyright (c) 2015 Daniel Bergløv
+ *
+ * Guardian is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Guardian is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Guardian. If not, see <http://www.gnu.org/licenses/>
+ */
+
+/*
+ * Compares the stat tokenizer of ProcessScanner.cpp (parseProcStat() and parseFields())
+ * with the character parser that it replaced (addData() and cpuInfo()), on the stat files of the running processes.
+ * Each file is read once, so only the parsing is measured. The records from both parsers are compared as well.
+ *
+ * This is not part of the library. Build it on a Linux host against the JDK headers:
+ *
+ *      g++ -std=c++11 -O2 -I$JAVA_HOME/include -I$JAVA_HOME/include/linux \
+ *          src/native/benchmark/StatBenchmark.cpp -o statBenchmark -lpthread
+ *
+ * Or with the NDK as an executable, to be run from an adb shell.
+ */
+
+#include "../ProcessScanner.cpp"
+
+#include <cstdio>
+
+using namespace spazedog;
+
+namespace {
+    const int ROUNDS = 2000;
+
+    /*
+     * The state that addData() kept in ScanWorker::DataVars
+     */
+    struct {
+        string word;
+        string buffer;
+        bool spaceChk;
+        bool groupChk;
+        bool cpuChk;
+        int maxPos;
+        int curPos;
+        int curWord;
+    } DataVars;
+
+    jlong oIdle = 0;
+    jlong oUptime = 0;
+    string oIdleString;
+    string oUptimeString;
+
+    /*
+     * The parser before the tokenizer, without the debug log.
+     * Each process line was prefixed with "type uid idle uptime" by addProcess().
+     */
+    void addData(string &data, ProcRecord &record, string &name) {
+        if (data.length() > 0) {
+            DataVars.word = "";
+            DataVars.spaceChk = false;
+            DataVars.groupChk = false;
+            DataVars.cpuChk = data.at(0) == 'c';
+            DataVars.maxPos = data.length()-1;
+            DataVars.curPos = 0;
+            DataVars.curWord = 0;
+
+            memset(&record, 0, sizeof(ProcRecord));
+
+            for (char &c : data) {
+                if (!isspace(c) || DataVars.groupChk) {
+                    DataVars.spaceChk = false;
+
+                    if (!DataVars.cpuChk && (c == '(' || c == ')')) {
+                        DataVars.groupChk = c == '(';
+
+                    } else if (DataVars.cpuChk || DataVars.curWord <= 5 || (DataVars.curWord >= 17 && DataVars.curWord <= 20) || DataVars.curWord == 25) {
+                        DataVars.word += c;
+                    }
+                }
+
+                if ((isspace(c) && !DataVars.groupChk) || DataVars.curPos == DataVars.maxPos) {
+                    if (!DataVars.spaceChk && !DataVars.word.empty()) {
+                        if (DataVars.cpuChk) {
+                            switch (DataVars.curWord) {
+                                case 1: record.idle = atoll(DataVars.word.c_str()); break;
+                                case 2: record.uptime = atoll(DataVars.word.c_str());
+                            }
+
+                        } else {
+                            switch (DataVars.curWord) {
+                                case 0: record.type = atoll(DataVars.word.c_str()); break;
+                                case 1: record.uid = atoll(DataVars.word.c_str()); break;
+                                case 2: record.idle = atoll(DataVars.word.c_str()); break;
+                                case 3: record.uptime = atoll(DataVars.word.c_str()); break;
+                                case 17: record.utime = atoll(DataVars.word.c_str()); break;
+                                case 18: record.stime = atoll(DataVars.word.c_str()); break;
+                                case 19: record.cutime = atoll(DataVars.word.c_str()); break;
+                                case 20: record.cstime = atoll(DataVars.word.c_str()); break;
+                                case 25: record.starttime = atoll(DataVars.word.c_str()); break;
+                                case 4: record.pid = atoll(DataVars.word.c_str()); break;
+                                case 5: name = DataVars.word;
+                            }
+                        }
+                    }
+
+                    if (!DataVars.spaceChk) {
+                        DataVars.curWord++;
+                    }
+
+                    DataVars.spaceChk = true;
+                    DataVars.word = "";
+                }
+
+                DataVars.curPos++;
+            }
+        }
+    }
+
+    void addProcess(string &data, ProcRecord &record, string &name) {
+        DataVars.buffer = "";
+        DataVars.buffer += "0";
+        DataVars.buffer += " ";
+        DataVars.buffer += "0";
+        DataVars.buffer += " ";
+        DataVars.buffer += oIdleString;
+        DataVars.buffer += " ";
+        DataVars.buffer += oUptimeString;
+        DataVars.buffer += " ";
+        DataVars.buffer += data;
+
+        addData(DataVars.buffer, record, name);
+    }
+
+    /*
+     * The old cpuInfo(), which was given the first line of /proc/stat
+     */
+    pair<string, string> cpuInfo(string &data) {
+        pair<string, string> ret;
+
+        string dataString = "";
+        long dataUptime = 0;
+
+        int maxPos = data.length()-1;
+        int curPos = 0;
+        int curWord = 0;
+        bool preSpace = false;
+
+        for (char &c : data) {
+            if (!isspace(c)) {
+                preSpace = false;
+
+                if (curWord > 0) {
+                    dataString += c;
+                }
+            }
+
+            if (isspace(c) || curPos == maxPos) {
+                if (curWord > 0 && !dataString.empty()) {
+                    dataUptime += atol(dataString.c_str());
+
+                    if (curWord == 4) {
+                        ret.first = dataString;
+                    }
+
+                    dataString = "";
+                }
+
+                if (!preSpace) {
+                    curWord++;
+                }
+
+                preSpace = true;
+            }
+
+            curPos++;
+        }
+
+        ret.second = to_string(dataUptime);
+
+        return ret;
+    }
+
+    /*
+     * The record as addStat() builds it from the tokenizer
+     */
+    bool parseProcess(const string &data, ProcRecord &record, string &name, jlong *fields) {
+        const char *comm;
+        size_t commLength;
+
+        if (!parseProcStat(data.data(), data.length(), STAT_PROCESS_MASK, fields, comm, commLength)) {
+            return false;
+        }
+
+        memset(&record, 0, sizeof(ProcRecord));
+        record.pid = fields[STAT_PID];
+        record.utime = fields[STAT_UTIME];
+        record.stime = fields[STAT_STIME];
+        record.cutime = fields[STAT_CUTIME];
+        record.cstime = fields[STAT_CSTIME];
+        record.starttime = fields[STAT_STARTTIME];
+        record.idle = oIdle;
+        record.uptime = oUptime;
+        name.assign(comm, commLength);
+
+        return true;
+    }
+
+    /*
+     * The total line of /proc/stat, as the first part of ProcessScanner::cpuInfo() parses it
+     */
+    void parseCpu(const string &data, jlong &idle, jlong &uptime, jlong *fields) {
+        int count = parseFields(data.data() + 3, data.data() + data.length(), 1, ~((uint64_t) 1), fields);
+
+        idle = count >= 4 ? fields[4] : 0;
+        uptime = 0;
+
+        for (int i=1; i <= count; i++) {
+            uptime += fields[i];
+        }
+    }
+
+    jlong now() {
+        struct timespec time;
+        clock_gettime(CLOCK_MONOTONIC, &time);
+
+        return ((jlong) time.tv_sec * 1000000000LL) + time.tv_nsec;
+    }
+
+    bool readLine(const string &path, string &line) {
+        if (!readFile(path.c_str(), line)) {
+            return false;
+        }
+
+        size_t eol = line.find('\n');
+
+        if (eol != string::npos) {
+            line.resize(eol);
+        }
+
+        return !line.empty();
+    }
+}
+
+int main() {
+    vector<string> lines;
+    string cpuLine;
+    string line;
+
+    if (!readLine("/proc/stat", cpuLine)) {
+        fprintf(stderr, "Could not read /proc/stat\n");
+        return 1;
+    }
+
+    DIR *dir = opendir("/proc");
+
+    while (dir != NULL) {
+        struct dirent *ent = readdir(dir);
+
+        if (ent == NULL) {
+            closedir(dir);
+            break;
+
+        } else if (isdigit(ent->d_name[0]) && readLine(string("/proc/") + ent->d_name + "/stat", line)) {
+            lines.push_back(line);
+        }
+    }
+
+    if (lines.empty()) {
+        fprintf(stderr, "Could not read any /proc/<pid>/stat\n");
+        return 1;
+    }
+
+    jlong fields[STAT_FIELDS];
+    vector<ProcRecord> oldRecords(lines.size());
+    vector<ProcRecord> newRecords(lines.size());
+    vector<string> oldNames(lines.size());
+    vector<string> newNames(lines.size());
+    jlong oldTime = 0;
+    jlong newTime = 0;
+    jlong oldCpuTime = 0;
+    jlong newCpuTime = 0;
+
+    /*
+     * The first round warms up the caches and is not counted
+     */
+    for (int x=0; x <= ROUNDS; x++) {
+        jlong time = now();
+        pair<string, string> cpu = cpuInfo(cpuLine);
+        oIdleString = cpu.first;
+        oUptimeString = cpu.second;
+        jlong cpuTime = now();
+
+        for (size_t i=0; i < lines.size(); i++) {
+            addProcess(lines[i], oldRecords[i], oldNames[i]);
+        }
+
+        if (x > 0) {
+            oldCpuTime += cpuTime - time;
+            oldTime += now() - cpuTime;
+        }
+
+        time = now();
+        parseCpu(cpuLine, oIdle, oUptime, fields);
+        cpuTime = now();
+
+        for (size_t i=0; i < lines.size(); i++) {
+            parseProcess(lines[i], newRecords[i], newNames[i], fields);
+        }
+
+        if (x > 0) {
+            newCpuTime += cpuTime - time;
+            newTime += now() - cpuTime;
+        }
+    }
+
+    /*
+     * Names with ')' in them was cut short by the old parser, so these are counted on their own
+     */
+    int mismatches = 0;
+    int nameMismatches = 0;
+
+    for (size_t i=0; i < lines.size(); i++) {
+        ProcRecord &oldRecord = oldRecords[i];
+        ProcRecord &newRecord = newRecords[i];
+
+        if (oldRecord.pid != newRecord.pid || oldRecord.utime != newRecord.utime || oldRecord.stime != newRecord.stime
+                || oldRecord.cutime != newRecord.cutime || oldRecord.cstime != newRecord.cstime || oldRecord.starttime != newRecord.starttime
+                || oldRecord.idle != newRecord.idle || oldRecord.uptime != newRecord.uptime) {
+
+            mismatches++;
+
+        } else if (oldNames[i] != newNames[i]) {
+            nameMismatches++;
+        }
+    }
+
+    printf("Stat benchmark: %d processes, %d rounds\n", (int) lines.size(), ROUNDS);
+    printf("\t/proc/<pid>/stat   addData() = %lldns, parseProcStat() = %lldns per line\n",
+            (long long) (oldTime / ROUNDS / (jlong) lines.size()), (long long) (newTime / ROUNDS / (jlong) lines.size()));
+    printf("\t/proc/stat         cpuInfo() = %lldns, parseFields() = %lldns per line\n",
+            (long long) (oldCpuTime / ROUNDS), (long long) (newCpuTime / ROUNDS));
+    printf("\tRecords that differ = %d, names that differ = %d\n", mismatches, nameMismatches);
+
+    return mismatches > 0 ? 1 : 0;
+}